@@ -50,7 +50,7 @@ class AliasAdjuster extends BodyTransformer {
     G.v().out.println("in AliasAdjuster.main");
     PackManager.v().getPack("jtp")// wjtp
         .add(new Transform("jtp.AliasAdjuster", new AliasAdjuster()));
-    ToStringVisitor.show_uid = false; // Hackish!
+    LCPrinter.show_uid = false; // Hackish!
     soot.Main.main(args);
   }
 
@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2015 The University of Wisconsin and the Pennsylvania State University
+ *
+ * Author: Daniel Luchaup
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.psu.cse.siis.coal.arguments;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import soot.Scene;
+import soot.SootMethod;
+import soot.jimple.toolkits.callgraph.Edge;
+import edu.psu.cse.siis.coal.arguments.LanguageConstraints.Call;
+import edu.psu.cse.siis.coal.arguments.RecursiveDAGSolverVisitorLC.MethodReturnValueAnalysisInterface;
+
+/*
+ * Solver computing an automaton (LCAutomaton) per node instead of a set of strings, so that nested
+ * unions and concatenations stay as small as their minimal automata, and cycles are solved rather
+ * than cut.
+ *
+ * A node met again on its own path is a cycle: the node is solved again, with the previous result
+ * for its inner occurrences, starting from the empty language, until the result does not change.
+ * After max_rounds rounds, the inner occurrences are widened to (.*). The other nodes are solved once per
+ * solver. Calls and parameters are handled as in RecursiveDAGSolverVisitorLC.
+ */
+class AutomatonSolverVisitorLC implements switchLC {
+  /* Rounds of a cycle before widening it */
+  static int max_rounds = 3;
+
+  boolean fieldMode = false;
+  int warnings = 0;
+  /* Cycles widened to (.*), including by LCAutomaton.max_states */
+  int widenings = 0;
+  LCAutomaton result;
+  int inline_depth = 0;
+  /* The arguments of the call being inlined, solved in the context of the caller */
+  LCAutomaton[] parameters;
+  MethodReturnValueAnalysisInterface methodReturnValueAnalysisInterface;
+
+  /* The nodes on the current path */
+  final LCMarks marks = LCMarks.get();
+  final int epoch = marks.newEpoch();
+  /* For the cycles being solved: the result of the previous round, and whether it was used */
+  private final Map<LanguageConstraints, LCAutomaton> assumed =
+      new HashMap<LanguageConstraints, LCAutomaton>();
+  private final Set<LanguageConstraints> reentered = new HashSet<LanguageConstraints>();
+  /* The nodes solved once and for all */
+  private final Map<LanguageConstraints, LCAutomaton> solved =
+      new HashMap<LanguageConstraints, LCAutomaton>();
+  /* The alternatives of the box being solved */
+  private List<LCAutomaton> alternatives = new ArrayList<LCAutomaton>();
+
+  AutomatonSolverVisitorLC(int inline_depth0, LCAutomaton[] actual_arguments,
+      MethodReturnValueAnalysisInterface mrvai) {
+    parameters = actual_arguments;
+    inline_depth = inline_depth0;
+    methodReturnValueAnalysisInterface = mrvai;
+  }
+
+  AutomatonSolverVisitorLC(int inline_depth0) {
+    this(inline_depth0, null, new MethodReturnValueAnalysisInterface() {
+      @Override
+      public Set<Object> getMethodReturnValues(Call call) {
+        return null;
+      }
+    });
+  }
+
+  AutomatonSolverVisitorLC() {
+    this(0);
+  }
+
+  boolean solve(LanguageConstraints.Box lcb) {
+    if (lcb == null)
+      return false;
+    alternatives = new ArrayList<LCAutomaton>();
+    LCWalker.apply(lcb, this, true, inline_depth);
+    result = LCAutomaton.union(alternatives);
+    if (result.widened)
+      widenings++;
+    return true;
+  }
+
+  private LCAutomaton solveBox(LanguageConstraints.Box lcb) {
+    List<LCAutomaton> old_alternatives = alternatives;
+    alternatives = new ArrayList<LCAutomaton>();
+    lcb.apply(this);
+    LCAutomaton res = LCAutomaton.union(alternatives);
+    alternatives = old_alternatives;
+    return res;
+  }
+
+  @Override
+  public boolean setFieldMode(boolean mode) {
+    boolean old_fieldMode = fieldMode;
+    fieldMode = mode;
+    return old_fieldMode;
+  }
+
+  /* Same as RecursiveDAGSolverVisitorLC.mayRecur */
+  private boolean mayRecur(LanguageConstraints lc) {
+    return parameters != null || SCCIndex.v(true).reachesCycle(lc);
+  }
+
+  /* The automaton of an inner node, solving its cycle if it is on one */
+  private LCAutomaton node(LanguageConstraints lc) {
+    LCAutomaton res = solved.get(lc);
+    if (res != null)
+      return res;
+    if (!mayRecur(lc)) {
+      res = inner(lc);
+      solved.put(lc, res);
+      return res;
+    }
+    if (marks.isMarked(lc, epoch)) {
+      reentered.add(lc);
+      return assumed.get(lc);
+    }
+    // outside of the cycles being solved, the result does not depend on the path
+    boolean outermost = assumed.isEmpty();
+    int prev = marks.mark(lc, epoch);
+    LCAutomaton old_assumed = assumed.put(lc, LCAutomaton.EMPTY);
+    boolean old_reentered = reentered.remove(lc);
+    for (int round = 0;; ++round) {
+      res = inner(lc);
+      if (!reentered.remove(lc) || res.equals(assumed.get(lc)))
+        break;
+      if (round == max_rounds) {
+        // widening: one last round with (.*) for the inner occurrences, which is sound since the
+        // operations are monotone
+        assumed.put(lc, LCAutomaton.ANY);
+        res = inner(lc);
+        reentered.remove(lc);
+        widenings++;
+        break;
+      }
+      assumed.put(lc, res);
+    }
+    if (old_assumed != null)
+      assumed.put(lc, old_assumed);
+    else
+      assumed.remove(lc);
+    if (old_reentered)
+      reentered.add(lc);
+    marks.unmark(lc, prev);
+    if (outermost)
+      solved.put(lc, res);
+    return res;
+  }
+
+  private LCAutomaton inner(LanguageConstraints lc) {
+    switch (lc.kind) {
+    case LanguageConstraints.UNION: {
+      List<LCAutomaton> elements = new ArrayList<LCAutomaton>();
+      for (LanguageConstraints.Box lcb : ((LanguageConstraints.Union) lc).elements)
+        elements.add(solveBox(lcb));
+      return LCAutomaton.union(elements);
+    }
+    case LanguageConstraints.CONCATENATE: {
+      LanguageConstraints.Concatenate lcc = (LanguageConstraints.Concatenate) lc;
+      return LCAutomaton.concatenate(solveBox(lcc.left), solveBox(lcc.right));
+    }
+    case LanguageConstraints.CONCATENATE_N: {
+      List<LCAutomaton> parts = new ArrayList<LCAutomaton>();
+      for (LanguageConstraints.Box part : ((LanguageConstraints.ConcatenateN) lc).parts)
+        parts.add(solveBox(part));
+      return LCAutomaton.concatenate(parts);
+    }
+    case LanguageConstraints.EQ:
+      return solveBox(((LanguageConstraints.Eq) lc).lcb);
+    case LanguageConstraints.STAR:
+      return LCAutomaton.star(solveBox(((LanguageConstraints.Star) lc).lcb));
+    case LanguageConstraints.STRING_OP: {
+      LanguageConstraints.StringOp lcs = (LanguageConstraints.StringOp) lc;
+      List<Set<String>> values = new ArrayList<Set<String>>(lcs.operands.length);
+      for (LanguageConstraints.Box operand : lcs.operands) {
+        Set<String> operand_values =
+            solveBox(operand).values(LanguageConstraints.StringOp.max_combinations);
+        if (operand_values == null)
+          return LCAutomaton.ANY; // beyond what StringOp can evaluate
+        values.add(operand_values);
+      }
+      Set<String> res = new HashSet<String>();
+      lcs.evalAll(values, res);
+      return LCAutomaton.patterns(res);
+    }
+    default:
+      throw new RuntimeException("Unexpected constraint kind: " + lc.kind);
+    }
+  }
+
+  /***************************************************************************/
+  @Override
+  public void caseTop(LanguageConstraints.Top lc) {
+    warnings++;
+  }
+
+  @Override
+  public void caseBottom(LanguageConstraints.Bottom lc) {
+    alternatives.add(LCAutomaton.ANY);
+  }
+
+  @Override
+  public void caseTerminal(LanguageConstraints.Terminal lc) {
+    alternatives.add(LCAutomaton.literal(lc.term));
+  }
+
+  @Override
+  public void caseTerminalSet(LanguageConstraints.TerminalSet lc) {
+    LCAutomaton res = solved.get(lc);
+    if (res == null) {
+      List<LCAutomaton> terms = new ArrayList<LCAutomaton>(lc.terms.length);
+      for (String term : lc.terms)
+        terms.add(LCAutomaton.literal(term));
+      res = LCAutomaton.union(terms);
+      solved.put(lc, res);
+    }
+    alternatives.add(res);
+  }
+
+  @Override
+  public void caseParameter(LanguageConstraints.Parameter lc) {
+    if (!fieldMode && parameters != null) {
+      if (parameters[lc.paramNum] != null)
+        alternatives.add(parameters[lc.paramNum]);
+      else
+        alternatives.add(LCAutomaton.ANY);
+    } else {
+      Res2Constr.getArgument(lc.sm, lc.paramNum).apply(this);
+    }
+  }
+
+  @Override
+  public void caseUnion(LanguageConstraints.Union lc) {
+    alternatives.add(node(lc));
+  }
+
+  @Override
+  public void caseConcatenate(LanguageConstraints.Concatenate lc) {
+    alternatives.add(node(lc));
+  }
+
+  @Override
+  public void caseConcatenateN(LanguageConstraints.ConcatenateN lc) {
+    alternatives.add(node(lc));
+  }
+
+  @Override
+  public void caseEq(LanguageConstraints.Eq lc) {
+    alternatives.add(node(lc));
+  }
+
+  @Override
+  public void caseStar(LanguageConstraints.Star lc) {
+    alternatives.add(node(lc));
+  }
+
+  @Override
+  public void caseStringOp(LanguageConstraints.StringOp lc) {
+    alternatives.add(node(lc));
+  }
+
+  @Override
+  public void casePending(LanguageConstraints.Pending lc) {
+    throw new RuntimeException("BAD PENDING!");
+  }
+
+  @Override
+  public void caseCall(Call lc) {
+    assert (inline_depth >= 0);
+    if (inline_depth == 0) {
+      alternatives.add(LCAutomaton.ANY);
+      return;
+    }
+    Set<Object> methodReturnValues = methodReturnValueAnalysisInterface.getMethodReturnValues(lc);
+    if (methodReturnValues != null) {
+      alternatives.add(LCAutomaton.patterns(methodReturnValues));
+      return;
+    }
+    LCAutomaton[] arguments = null;
+    boolean seen_any = false;
+    for (Iterator<Edge> ite = Scene.v().getCallGraph().edgesOutOf(lc.stmt); ite.hasNext();) {
+      SootMethod callee = ite.next().tgt();
+      if (callee.getSignature().endsWith(": void <clinit>()>"))
+        continue;
+      seen_any = true;
+      if (Res2Constr.knownReturn(callee)) {
+        if (arguments == null) {
+          arguments = new LCAutomaton[lc.arguments.length];
+          for (int i = 0; i < arguments.length; ++i)
+            arguments[i] = solveArgument(lc, lc.arguments[i]);
+        }
+        AutomatonSolverVisitorLC solveCall =
+            new AutomatonSolverVisitorLC(inline_depth - 1, arguments,
+                methodReturnValueAnalysisInterface);
+        alternatives.add(solveCall.solveBox(Res2Constr.getReturn(callee)));
+        warnings += solveCall.warnings;
+        widenings += solveCall.widenings;
+      } else
+        alternatives.add(LCAutomaton.ANY);
+    }
+    if (!seen_any)
+      alternatives.add(LCAutomaton.ANY);
+  }
+
+  /*
+   * An argument of lc, solved here since it may read the parameters of the caller. Meeting lc again
+   * while solving it (e.g. x = f(x) in a loop) is a cycle, widened to (.*).
+   */
+  private LCAutomaton solveArgument(Call lc, LanguageConstraints.Box arg) {
+    if (arg == null || marks.isMarked(lc, epoch))
+      return LCAutomaton.ANY;
+    int prev = marks.mark(lc, epoch);
+    LCAutomaton res = solveBox(arg);
+    marks.unmark(lc, prev);
+    return res;
+  }
+}
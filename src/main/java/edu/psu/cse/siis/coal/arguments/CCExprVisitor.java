@@ -153,6 +153,62 @@ public class CCExprVisitor implements JimpleValueSwitch {
     return m_signature.startsWith(prefix);
   }
 
+  /* The value of an int or char argument, StringOp.UNKNOWN if it is not a constant */
+  int evalIntArg(InvokeExpr iexpr, int arg_num) {
+    Value v = iexpr.getArg(arg_num);
+    if (v instanceof IntConstant)
+      return ((IntConstant) v).value;
+    return LanguageConstraints.StringOp.UNKNOWN;
+  }
+
+  /*
+   * java.lang.String operations that are modeled directly, instead of going through the call graph.
+   * Returns null for the other methods.
+   */
+  LanguageConstraints.Box evalStringOperation(VirtualInvokeExpr v) {
+    String m_signature = v.getMethod().getSignature();
+    if (!m_signature.startsWith("<java.lang.String: java.lang.String "))
+      return null;
+    String subsig = m_signature.substring("<java.lang.String: java.lang.String ".length());
+    if (subsig.equals("toString()>") || subsig.equals("intern()>"))
+      return evalBase(v);
+    if (subsig.equals("concat(java.lang.String)>")) {
+      LanguageConstraints.Box l = evalBase(v);
+      LanguageConstraints.Box r = evalArg(v, 0);
+      return LCFactory.concatenate(l, r);
+    }
+
+    int op;
+    int[] ints = new int[0];
+    LanguageConstraints.Box[] operands = null;
+    if (subsig.equals("substring(int)>")) {
+      op = LanguageConstraints.StringOp.SUBSTRING;
+      ints = new int[] { evalIntArg(v, 0) };
+    } else if (subsig.equals("substring(int,int)>")) {
+      op = LanguageConstraints.StringOp.SUBSTRING;
+      ints = new int[] { evalIntArg(v, 0), evalIntArg(v, 1) };
+    } else if (subsig.equals("replace(char,char)>")) {
+      op = LanguageConstraints.StringOp.REPLACE_CHAR;
+      ints = new int[] { evalIntArg(v, 0), evalIntArg(v, 1) };
+    } else if (subsig.equals("replace(java.lang.CharSequence,java.lang.CharSequence)>")) {
+      op = LanguageConstraints.StringOp.REPLACE;
+      LanguageConstraints.Box base = evalBase(v);
+      LanguageConstraints.Box target = evalArg(v, 0);
+      LanguageConstraints.Box replacement = evalArg(v, 1);
+      operands = new LanguageConstraints.Box[] { base, target, replacement };
+    } else if (subsig.equals("toLowerCase()>"))
+      op = LanguageConstraints.StringOp.TO_LOWER_CASE;
+    else if (subsig.equals("toUpperCase()>"))
+      op = LanguageConstraints.StringOp.TO_UPPER_CASE;
+    else if (subsig.equals("trim()>"))
+      op = LanguageConstraints.StringOp.TRIM;
+    else
+      return null;
+    if (operands == null)
+      operands = new LanguageConstraints.Box[] { evalBase(v) };
+    return LCFactory.stringOp(op, operands, ints);
+  }
+
   LanguageConstraints.Box
       getCaleeAndPutCallArguments(Stmt stmt, LanguageConstraints.Box[] arguments) {
     Res2Constr.putCallArguments(sm, stmt, arguments);
@@ -191,7 +247,7 @@ public class CCExprVisitor implements JimpleValueSwitch {
   public void caseStringConstant(StringConstant v) {
     dbg("caseStringConstant", v);
     String str = v.value;
-    result = new LanguageConstraints.Box(new LanguageConstraints.Terminal(str));
+    result = LCFactory.terminalBox(str);
   }
 
   @Override
@@ -313,7 +369,7 @@ public class CCExprVisitor implements JimpleValueSwitch {
       return;
     }
     if (hasSignature(v, "<java.lang.StringBuilder: void <init>()>")) {
-      result = new LanguageConstraints.Box(new LanguageConstraints.Terminal(""));
+      result = LCFactory.terminalBox("");
       return;
     }
     // throw new RuntimeException("Unhandled SpecialInvokeExpr: v=" + v);
@@ -357,21 +413,24 @@ public class CCExprVisitor implements JimpleValueSwitch {
         "<java.lang.StringBuilder: java.lang.StringBuilder append(java.lang.String)>")) {
       LanguageConstraints.Box l = evalBase(v);
       LanguageConstraints.Box r = evalArg(v, 0);
-      result = new LanguageConstraints.Box(new LanguageConstraints.Concatenate(l, r));
+      result = LCFactory.concatenate(l, r);
       return;
     }
     if (hasPrefixSignature(v, "<java.lang.StringBuilder: java.lang.StringBuilder append(")) {
       LanguageConstraints.Box l = evalBase(v);
       // LanguageConstraints.Box r = evalArg(v, 0);
-      result =
-          new LanguageConstraints.Box(new LanguageConstraints.Concatenate(l,
-              LanguageConstraints.BottomBox()));
+      result = LCFactory.concatenate(l, LanguageConstraints.BottomBox());
       return;
     }
     if (hasSignature(v, "<java.lang.StringBuilder: java.lang.String toString()>")) {
       result = evalBase(v);
       return;
     }
+    LanguageConstraints.Box op = evalStringOperation(v);
+    if (op != null) {
+      result = op;
+      return;
+    }
 
     if (dbg_all_string_functions_known) {
       G.v().out.println("DBG:rop-expected-Invoke at " + stmt + " found " + v + "  of class= "
@@ -398,7 +457,7 @@ public class CCExprVisitor implements JimpleValueSwitch {
   @Override
   public void caseNewArrayExpr(NewArrayExpr v) {
     // ignore("caseNewArrayExpr", v);
-    result = new LanguageConstraints.Box(LanguageConstraints.Top.v());
+    result = LCFactory.topBox();
   }
 
   @Override
@@ -409,7 +468,7 @@ public class CCExprVisitor implements JimpleValueSwitch {
   @Override
   public void caseNewExpr(NewExpr v) {
     dbg("caseNewExpr", v);
-    result = new LanguageConstraints.Box(LanguageConstraints.Top.v());
+    result = LCFactory.topBox();
   }
 
   @Override
@@ -445,7 +504,7 @@ public class CCExprVisitor implements JimpleValueSwitch {
   @Override
   public void caseParameterRef(ParameterRef v) {
     dbg("caseParameterRef", v);
-    result = new LanguageConstraints.Box(new LanguageConstraints.Parameter(sm, v.getIndex()));
+    result = LCFactory.parameterBox(sm, v.getIndex());
   }
 
   @Override
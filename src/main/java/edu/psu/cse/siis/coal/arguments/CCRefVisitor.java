@@ -105,6 +105,7 @@ public class CCRefVisitor implements RefSwitch {
         lcu.addLCB(new LanguageConstraints.Box(defb.getLC()));
         lcu.addLCB(lcb);
         defb.setLC(lcu);
+        QueryTracker.changed(defb);
         if (ARRAY_FIELDS) {
           /*
            * hack to get array fields working This is a hack, because I need to treat
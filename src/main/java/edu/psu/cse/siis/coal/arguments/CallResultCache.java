@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2015 The University of Wisconsin and the Pennsylvania State University
+ *
+ * Author: Daniel Luchaup
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.psu.cse.siis.coal.arguments;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import soot.SootMethod;
+
+/*
+ * Return values of callees per argument values, so that the calls to a method with the same
+ * arguments (e.g. a logging helper called with the same tag from many places) are solved once.
+ *
+ * The key is the fingerprint of the return box of the callee (see LCFingerprint), the depth its
+ * calls are inlined to (see ReturnSummaries) and the values of its arguments, whose hash is
+ * computed once. Within a version of the graph, callees with the same fingerprint return the same
+ * values: their parameters and calls are part of it. The entries are weighted and evicted as in
+ * WeightedLRUCache. Like a SolverCache, a cache is given to the solvers of a batch, which must use
+ * the same MethodReturnValueAnalysisInterface.
+ */
+class CallResultCache extends WeightedLRUCache {
+  static int default_max_weight = 1 << 16;
+
+  private static final class Key {
+    final long fingerprint;
+    final int depth;
+    final List<Set<Object>> arguments;
+    final int hash;
+
+    Key(SootMethod callee, int depth0, Set<Object>[] arguments0) {
+      fingerprint = LCFingerprint.of(Res2Constr.getReturn(callee));
+      depth = depth0;
+      arguments = Arrays.asList(arguments0.clone());
+      hash =
+          31 * (31 * (int) (fingerprint ^ (fingerprint >>> 32)) + depth) + arguments.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key))
+        return false;
+      Key key = (Key) obj;
+      return hash == key.hash && depth == key.depth && fingerprint == key.fingerprint
+          && arguments.equals(key.arguments);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+
+  CallResultCache(int max_weight0) {
+    super(max_weight0);
+  }
+
+  CallResultCache() {
+    this(default_max_weight);
+  }
+
+  /*
+   * The return values of callee inlined depth levels deep, with arguments[i] the values of its
+   * parameter i (null when not needed), or null; not to be modified
+   */
+  Set<Object> get(SootMethod callee, int depth, Set<Object>[] arguments) {
+    return lookup(new Key(callee, depth, arguments));
+  }
+
+  void put(SootMethod callee, int depth, Set<Object>[] arguments, Set<Object> result) {
+    store(new Key(callee, depth, arguments), result);
+  }
+}
@@ -17,23 +17,23 @@
  */
 package edu.psu.cse.siis.coal.arguments;
 
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Set;
+import java.util.Arrays;
 
 import edu.psu.cse.siis.coal.arguments.LanguageConstraints.Call;
 
 class CheckRecursionVisitorLC implements switchLC {
   boolean recursive = false;
-  Set<LanguageConstraints> seen;
   boolean follow_calls;
+  /* The nodes on the current path, and what to restore when leaving them */
+  final LCMarks marks = LCMarks.get();
+  final int epoch = marks.newEpoch();
+  private int[] prevs = new int[64];
+  private int depth = 0;
 
   CheckRecursionVisitorLC() {
-    seen = new HashSet<LanguageConstraints>();
   }
 
   CheckRecursionVisitorLC(boolean follow_calls0) {
-    seen = new HashSet<LanguageConstraints>();
     follow_calls = follow_calls0;
   }
 
@@ -58,50 +58,74 @@ class CheckRecursionVisitorLC implements switchLC {
     ;
   }
 
+  @Override
+  public void caseTerminalSet(LanguageConstraints.TerminalSet lc) {
+    ;
+  }
+
   @Override
   public void caseParameter(LanguageConstraints.Parameter lc) {
     ;
   }
 
+  /*
+   * Inner nodes are walked with an explicit stack, so deep graphs do not overflow the Java stack.
+   * The nodes on the current path are marked.
+   */
   @Override
   public void caseUnion(LanguageConstraints.Union lc) {
-    if (seen.contains(lc)) {
-      recursive = true;
-      return;
-    }
-    seen.add(lc);
-    Iterator<LanguageConstraints.Box> it = lc.elements.iterator();
-    while (it.hasNext()) {
-      LanguageConstraints.Box lcb = it.next();
-      lcb.apply(this);
-    }
-    assert (seen.contains(lc));
-    seen.remove(lc);
+    check(lc);
   }
 
   @Override
   public void caseConcatenate(LanguageConstraints.Concatenate lc) {
-    if (seen.contains(lc)) {
-      recursive = true;
-      return;
-    }
-    seen.add(lc);
-    lc.left.apply(this);
-    lc.right.apply(this);
-    assert (seen.contains(lc));
-    seen.remove(lc);
+    check(lc);
+  }
+
+  @Override
+  public void caseConcatenateN(LanguageConstraints.ConcatenateN lc) {
+    check(lc);
   }
 
   @Override
   public void caseEq(LanguageConstraints.Eq lc) {
-    if (seen.contains(lc)) {
-      recursive = true;
-      return;
-    }
-    seen.add(lc);
-    lc.lcb.apply(this);
-    assert (seen.contains(lc));
-    seen.remove(lc);
+    check(lc);
+  }
+
+  @Override
+  public void caseStar(LanguageConstraints.Star lc) {
+    check(lc);
+  }
+
+  @Override
+  public void caseStringOp(LanguageConstraints.StringOp lc) {
+    check(lc);
+  }
+
+  private void check(LanguageConstraints root) {
+    new LCWalker(false).walk(root, new LCWalker.Listener() {
+      @Override
+      public boolean enter(LanguageConstraints lc) {
+        if (recursive)
+          return false;
+        if (lc.kind == LanguageConstraints.PENDING || marks.isMarked(lc, epoch)) {
+          recursive = true;
+          return false;
+        }
+        if (lc.kind == LanguageConstraints.CALL)
+          assert (!follow_calls); // TBD Recursion within a procedure, or overall?
+        if (depth == prevs.length)
+          prevs = Arrays.copyOf(prevs, 2 * depth);
+        prevs[depth++] = marks.mark(lc, epoch);
+        return true;
+      }
+
+      @Override
+      public void exit(LanguageConstraints lc) {
+        assert (marks.isMarked(lc, epoch));
+        marks.unmark(lc, prevs[--depth]);
+      }
+    });
   }
 
   @Override
@@ -97,8 +97,7 @@ public class ConstraintCollector {
     if (v instanceof Local)
       return getConstraintOfAt((Local) v, stmt);
     if (v instanceof StringConstant)
-      return new LanguageConstraints.Box(new LanguageConstraints.Terminal(
-          ((StringConstant) v).value));
+      return LCFactory.terminalBox(((StringConstant) v).value);
     return null; // BottomBox?
   }
 
@@ -154,11 +153,14 @@ public class ConstraintCollector {
   }
 
   private static boolean done_globalCollection = false;
+  /* Run on the whole graph at the end of globalCollection; null to solve the raw graph */
+  static LCOptimizer optimizer = LCOptimizer.defaultPipeline();
 
   static void globalCollection(ModelInterface ccModel) {
     if (done_globalCollection)
       return;
     done_globalCollection = true;
+    LCFactory.reset();
     List<MethodOrMethodContext> eps =
         new ArrayList<MethodOrMethodContext>(Scene.v().getEntryPoints());
     ReachableMethods reachableMethods =
@@ -171,6 +173,15 @@ public class ConstraintCollector {
       if (method.hasActiveBody() && !ccModel.isExcludedClass(method.getDeclaringClass().getName()))
         handleMethod(method);
     }
+    if (optimizer != null)
+      optimizer.run(Res2Constr.roots());
+    /*
+     * TBD: spill the cold part of the graph to a memory-mapped file here, for the apps whose graph
+     * does not fit in the heap. This needs the graph in a compact store first (see
+     * LanguageConstraints.Box).
+     */
+    // the graph is built: only the nodes it refers to are kept
+    LCFactory.reset();
   }
 }
 
@@ -17,8 +17,12 @@
  */
 package edu.psu.cse.siis.coal.arguments;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
 import edu.psu.cse.siis.coal.arguments.LanguageConstraints.Call;
@@ -42,11 +46,9 @@ class DAGSolverVisitorLC implements switchLC {
   boolean solve(LanguageConstraints.Box lcb) {
     if (lcb == null)
       return false;
-    CheckRecursionVisitorLC checker = new CheckRecursionVisitorLC();
-    lcb.apply(checker);
-    if (checker.recursive)
+    if (SCCIndex.v(false).hasCycle(lcb))
       return false;
-    lcb.apply(this);
+    LCWalker.apply(lcb, this, false, inline_depth);
     return true;
   }
 
@@ -71,6 +73,11 @@ class DAGSolverVisitorLC implements switchLC {
     result.add(lc.term);
   }
 
+  @Override
+  public void caseTerminalSet(LanguageConstraints.TerminalSet lc) {
+    result.addAll(Arrays.asList(lc.terms));
+  }
+
   @Override
   public void caseParameter(LanguageConstraints.Parameter lc) {
     result.add("(.*)");
@@ -83,30 +90,70 @@ class DAGSolverVisitorLC implements switchLC {
       LanguageConstraints.Box lcb = it.next();
       lcb.apply(this);
     }
+    LCWidening.bound(result);
   }
 
   @Override
   public void caseConcatenate(LanguageConstraints.Concatenate lc) {
     DAGSolverVisitorLC solveLeft = new DAGSolverVisitorLC();
     lc.left.apply(solveLeft);
-    ToStringVisitor.show_uid = false; // Hackish ...
+    LCPrinter.show_uid = false; // Hackish ...
     DAGSolverVisitorLC solveRight = new DAGSolverVisitorLC();
     lc.right.apply(solveRight);
+    LCWidening.boundProduct(solveLeft.result, solveRight.result);
     for (Iterator<String> lit = solveLeft.result.iterator(); lit.hasNext();) {
       String lstr = lit.next();
       for (Iterator<String> rit = solveRight.result.iterator(); rit.hasNext();) {
         String rstr = rit.next();
-        result.add(lstr + rstr);
+        result.add(StringPattern.concat(lstr, rstr));
       }
     }
+    LCWidening.bound(result);
     warnings += solveLeft.warnings + solveRight.warnings;
   }
 
+  /* One product pass, left to right */
+  @Override
+  public void caseConcatenateN(LanguageConstraints.ConcatenateN lc) {
+    Set<String> acc = Collections.singleton("");
+    for (LanguageConstraints.Box part : lc.parts) {
+      DAGSolverVisitorLC solvePart = new DAGSolverVisitorLC();
+      part.apply(solvePart);
+      warnings += solvePart.warnings;
+      LCWidening.boundProduct(acc, solvePart.result);
+      Set<String> next = new HashSet<String>();
+      for (String lstr : acc)
+        for (String rstr : solvePart.result)
+          next.add(StringPattern.concat(lstr, rstr));
+      acc = next;
+    }
+    result.addAll(acc);
+    LCWidening.bound(result);
+  }
+
   @Override
   public void caseEq(LanguageConstraints.Eq lc) {
     lc.lcb.apply(this);
   }
 
+  /* Loops summarized by LCOptimizer: any number of repetitions is beyond a finite set */
+  @Override
+  public void caseStar(LanguageConstraints.Star lc) {
+    result.add("(.*)");
+  }
+
+  @Override
+  public void caseStringOp(LanguageConstraints.StringOp lc) {
+    List<Set<String>> values = new ArrayList<Set<String>>(lc.operands.length);
+    for (LanguageConstraints.Box operand : lc.operands) {
+      DAGSolverVisitorLC solveOperand = new DAGSolverVisitorLC();
+      operand.apply(solveOperand);
+      values.add(solveOperand.result);
+      warnings += solveOperand.warnings;
+    }
+    lc.evalAll(values, result);
+  }
+
   @Override
   public void casePending(LanguageConstraints.Pending lc) {
     throw new RuntimeException("BAD PENDING!");
@@ -87,6 +87,13 @@ import soot.toolkits.scalar.SmartLocalDefs;
 
 public class DBG {
   static int verbose_level = 0;
+  /* Bounds on the constraints that are logged, see LCPrinter */
+  static int lcb_max_depth = 32;
+  static int lcb_max_size = 4096;
+
+  static String str(LanguageConstraints.Box lcb) {
+    return LCPrinter.toString(lcb, lcb_max_depth, lcb_max_size);
+  }
 
   public static void dbgEdgesOutOf(Unit u) {
     CallGraph cg = Scene.v().getCallGraph();
@@ -145,7 +152,7 @@ public class DBG {
   static void showLCB(LanguageConstraints.Box lcb, String msg) {
     if (verbose_level < 5)
       return;
-    G.v().out.println("RESULT-lcb:[" + msg + "]\t=======>\t" + lcb);
+    G.v().out.println("RESULT-lcb:[" + msg + "]\t=======>\t" + str(lcb));
     /*
      * Now, in theory we can use any one of the available solvers ...
      * 
@@ -159,12 +159,12 @@ class ExampleStringAnalyzer extends SceneTransformer {
             // while(dbg==10) {
             G.v().out.println("EMPTY");
             dagvlc.solve(lcb);
-            String str_lcb = lcb.toString();
+            String str_lcb = DBG.str(lcb);
             G.v().out.println("DAG-VISITOR:lcb:\t\t=======>\t\t" + str_lcb);
             // }
           }
         }
-        String str_lcb = lcb.toString();
+        String str_lcb = DBG.str(lcb);
         G.v().out.println("DAG-VISITOR:lcb:\t\t=======>\t\t" + str_lcb);
       }
     }
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2015 The University of Wisconsin and the Pennsylvania State University
+ *
+ * Author: Daniel Luchaup
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.psu.cse.siis.coal.arguments;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import soot.Scene;
+import soot.SootMethod;
+import soot.jimple.toolkits.callgraph.Edge;
+
+/*
+ * Worklist fixpoint over the constraint graph, in any StringLattice, instead of enumerating
+ * strings: cycles are solved by iteration rather than cut to (.*).
+ *
+ * Every node reachable from the query starts at bottom, and is evaluated again when one of the
+ * nodes it reads changes. A node that changed widen_after times is widened, so that each node
+ * changes a number of times bounded by the lattice, and the whole solve is polynomial in the size
+ * of the graph. The solve is context insensitive: a parameter reads its arguments in all contexts
+ * (as RecursiveDAGSolverVisitorLC does outside a call context), and a call the return boxes of its
+ * callees. The graph must not change during a solve, unless the thread pinned an LCSnapshot.
+ */
+class FixpointSolver<V> {
+  /* Changes of a node before it is widened */
+  static int widen_after = 3;
+
+  final StringLattice<V> lattice;
+  private final Map<LanguageConstraints, V> values = new HashMap<LanguageConstraints, V>();
+  private final Map<LanguageConstraints, Integer> changes = new HashMap<LanguageConstraints, Integer>();
+  /* The nodes that read a node */
+  private final Map<LanguageConstraints, List<LanguageConstraints>> readers =
+      new HashMap<LanguageConstraints, List<LanguageConstraints>>();
+  int evaluations = 0;
+  int widenings = 0;
+
+  FixpointSolver(StringLattice<V> lattice0) {
+    lattice = lattice0;
+  }
+
+  V solve(LanguageConstraints.Box lcb) {
+    LanguageConstraints root = (lcb == null) ? null : lcb.getLC();
+    if (root == null)
+      return lattice.bottom();
+    List<LanguageConstraints> order = collect(root);
+    // the readers after what they read, most of the time
+    ArrayDeque<LanguageConstraints> work = new ArrayDeque<LanguageConstraints>(order);
+    Set<LanguageConstraints> queued = new HashSet<LanguageConstraints>(order);
+    while (!work.isEmpty()) {
+      LanguageConstraints lc = work.poll();
+      queued.remove(lc);
+      ++evaluations;
+      V old = value(lc);
+      V next = lattice.join(old, eval(lc));
+      if (next.equals(old))
+        continue;
+      Integer n = changes.get(lc);
+      n = (n == null) ? 1 : n + 1;
+      changes.put(lc, n);
+      if (n > widen_after) {
+        next = lattice.widen(old, next);
+        ++widenings;
+      }
+      values.put(lc, next);
+      List<LanguageConstraints> lcs = readers.get(lc);
+      if (lcs != null)
+        for (LanguageConstraints reader : lcs)
+          if (queued.add(reader))
+            work.add(reader);
+    }
+    return value(root);
+  }
+
+  /* The value of lc in the last solve */
+  V value(LanguageConstraints lc) {
+    V res = values.get(lc);
+    return (res == null) ? lattice.bottom() : res;
+  }
+
+  private V value(LanguageConstraints.Box lcb) {
+    LanguageConstraints lc = (lcb == null) ? null : lcb.getLC();
+    return (lc == null) ? lattice.bottom() : value(lc);
+  }
+
+  // ///////////////////////////////////////////////
+  /* The boxes a node reads */
+  private static List<LanguageConstraints.Box> reads(LanguageConstraints lc) {
+    switch (lc.kind) {
+    case LanguageConstraints.PARAMETER: {
+      LanguageConstraints.Parameter lcp = (LanguageConstraints.Parameter) lc;
+      return Collections.singletonList(Res2Constr.getArgument(lcp.sm, lcp.paramNum));
+    }
+    case LanguageConstraints.CALL: {
+      List<LanguageConstraints.Box> res = new ArrayList<LanguageConstraints.Box>();
+      for (SootMethod callee : callees((LanguageConstraints.Call) lc))
+        if (Res2Constr.knownReturn(callee))
+          res.add(Res2Constr.getReturn(callee));
+      return res;
+    }
+    default:
+      return LCWalker.children(lc, false);
+    }
+  }
+
+  private static List<SootMethod> callees(LanguageConstraints.Call lc) {
+    List<SootMethod> res = new ArrayList<SootMethod>();
+    if (!Scene.v().hasCallGraph())
+      return res;
+    for (Iterator<Edge> it = Scene.v().getCallGraph().edgesOutOf(lc.stmt); it.hasNext();) {
+      SootMethod callee = it.next().tgt();
+      if (!callee.getSignature().endsWith(": void <clinit>()>"))
+        res.add(callee);
+    }
+    return res;
+  }
+
+  /* The nodes reachable from root, in post-order, and their readers */
+  private List<LanguageConstraints> collect(LanguageConstraints root) {
+    List<LanguageConstraints> order = new ArrayList<LanguageConstraints>();
+    Set<LanguageConstraints> seen = new HashSet<LanguageConstraints>();
+    ArrayDeque<LanguageConstraints> stack = new ArrayDeque<LanguageConstraints>();
+    ArrayDeque<Iterator<LanguageConstraints.Box>> its =
+        new ArrayDeque<Iterator<LanguageConstraints.Box>>();
+    seen.add(root);
+    stack.push(root);
+    its.push(reads(root).iterator());
+    while (!stack.isEmpty()) {
+      Iterator<LanguageConstraints.Box> it = its.peek();
+      if (!it.hasNext()) {
+        order.add(stack.pop());
+        its.pop();
+        continue;
+      }
+      LanguageConstraints.Box lcb = it.next();
+      LanguageConstraints lc = (lcb == null) ? null : lcb.getLC();
+      if (lc == null)
+        continue;
+      List<LanguageConstraints> lcs = readers.get(lc);
+      if (lcs == null) {
+        lcs = new ArrayList<LanguageConstraints>();
+        readers.put(lc, lcs);
+      }
+      lcs.add(stack.peek());
+      if (seen.add(lc)) {
+        stack.push(lc);
+        its.push(reads(lc).iterator());
+      }
+    }
+    return order;
+  }
+
+  // ///////////////////////////////////////////////
+  private V eval(LanguageConstraints lc) {
+    switch (lc.kind) {
+    case LanguageConstraints.TOP:
+      return lattice.bottom(); // no value, as for the set solvers
+    case LanguageConstraints.BOTTOM:
+      return lattice.top();
+    case LanguageConstraints.TERMINAL:
+      return lattice.constant(((LanguageConstraints.Terminal) lc).term);
+    case LanguageConstraints.TERMINAL_SET: {
+      V res = lattice.bottom();
+      for (String term : ((LanguageConstraints.TerminalSet) lc).terms)
+        res = lattice.join(res, lattice.constant(term));
+      return res;
+    }
+    case LanguageConstraints.PARAMETER:
+    case LanguageConstraints.UNION:
+    case LanguageConstraints.EQ: {
+      V res = lattice.bottom();
+      for (LanguageConstraints.Box lcb : reads(lc))
+        res = lattice.join(res, value(lcb));
+      return res;
+    }
+    case LanguageConstraints.CALL: {
+      List<SootMethod> callees = callees((LanguageConstraints.Call) lc);
+      V res = callees.isEmpty() ? lattice.top() : lattice.bottom();
+      for (SootMethod callee : callees)
+        res = lattice.join(res,
+            Res2Constr.knownReturn(callee) ? value(Res2Constr.getReturn(callee)) : lattice.top());
+      return res;
+    }
+    case LanguageConstraints.CONCATENATE:
+    case LanguageConstraints.CONCATENATE_N: {
+      V res = lattice.constant("");
+      for (LanguageConstraints.Box lcb : reads(lc))
+        res = lattice.concatenate(res, value(lcb));
+      return res;
+    }
+    case LanguageConstraints.STAR:
+      return star(value(((LanguageConstraints.Star) lc).lcb));
+    case LanguageConstraints.STRING_OP: {
+      LanguageConstraints.StringOp lcs = (LanguageConstraints.StringOp) lc;
+      List<Set<String>> operands = new ArrayList<Set<String>>(lcs.operands.length);
+      for (LanguageConstraints.Box operand : lcs.operands) {
+        Set<String> strs = lattice.strings(value(operand));
+        if (strs == null)
+          return lattice.top();
+        operands.add(strs);
+      }
+      Set<String> strs = new HashSet<String>();
+      lcs.evalAll(operands, strs);
+      V res = lattice.bottom();
+      for (String str : strs)
+        res = lattice.join(res, lattice.constant(str));
+      return res;
+    }
+    case LanguageConstraints.PENDING:
+      throw new RuntimeException("BAD PENDING!");
+    default:
+      throw new RuntimeException("Unexpected constraint kind: " + lc.kind);
+    }
+  }
+
+  /* The empty string, or any number of v: x = "" | x v, with widening */
+  private V star(V v) {
+    V res = lattice.constant("");
+    for (int n = 1;; ++n) {
+      V next = lattice.join(res, lattice.concatenate(res, v));
+      if (n > widen_after)
+        next = lattice.widen(res, next);
+      if (next.equals(res))
+        return res;
+      res = next;
+    }
+  }
+}
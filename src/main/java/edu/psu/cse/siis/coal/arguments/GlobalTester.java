@@ -46,7 +46,7 @@ public class GlobalTester extends BodyTransformer {
   public static void main(String[] args) {
     G.v().out.println("in Tester.main");
     PackManager.v().getPack("jtp").add(new Transform("jtp.Tester", new GlobalTester()));
-    ToStringVisitor.show_uid = false; // Hackish!
+    LCPrinter.show_uid = false; // Hackish!
     soot.Main.main(args);
   }
 
@@ -95,7 +95,8 @@ public class GlobalTester extends BodyTransformer {
       handleValue(Value v, Stmt s, ConstraintCollector cc, SootMethod current_sm, String msg) {
     // get the constraints for 'l'
     LanguageConstraints.Box lcb = cc.getConstraintOfValueAt(v, s);
-    G.v().out.println("RESULT-lcb:[" + msg + current_sm.getName() + "]\t=======>\t" + lcb);
+    G.v().out.println("RESULT-lcb:[" + msg + current_sm.getName() + "]\t=======>\t"
+        + DBG.str(lcb));
     /*
      * Now, in theory we can use any one of the available solvers ...
      * 
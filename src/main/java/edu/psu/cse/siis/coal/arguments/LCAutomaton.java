@@ -0,0 +1,551 @@
+/*
+ * Copyright (C) 2015 The University of Wisconsin and the Pennsylvania State University
+ *
+ * Author: Daniel Luchaup
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.psu.cse.siis.coal.arguments;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/*
+ * A regular language of strings, as a minimal deterministic automaton. Used by
+ * AutomatonSolverVisitorLC instead of sets of strings.
+ *
+ * State 0 is the start state. A state has transitions on a few explicit chars, and one transition
+ * (other) on every char that is not explicit, so that (.*) costs a single state whatever the
+ * alphabet. -1 is the rejecting state, which is not stored. The automata are immutable and always
+ * minimal, with their states numbered in the order of a breadth first walk, so that two automata
+ * of the same language are equal.
+ *
+ * The operations go through an automaton with epsilon transitions, followed by the subset
+ * construction and minimization. When the subset construction needs more than max_states states
+ * the result is widened to (.*), and marked as such.
+ */
+final class LCAutomaton {
+  /* Bound on the states of the subset construction */
+  static int max_states = 4096;
+
+  static final LCAutomaton EMPTY = new LCAutomaton(new char[][] { {} }, new int[][] { {} },
+      new int[] { -1 }, new boolean[] { false }, false);
+  static final LCAutomaton EPSILON = new LCAutomaton(new char[][] { {} }, new int[][] { {} },
+      new int[] { -1 }, new boolean[] { true }, false);
+  static final LCAutomaton ANY = new LCAutomaton(new char[][] { {} }, new int[][] { {} },
+      new int[] { 0 }, new boolean[] { true }, false);
+  private static final LCAutomaton WIDENED = new LCAutomaton(ANY.chars, ANY.targets, ANY.other,
+      ANY.accept, true);
+
+  /* Per state: the explicit chars (sorted), their targets, the target on other chars */
+  private final char[][] chars;
+  private final int[][] targets;
+  private final int[] other;
+  private final boolean[] accept;
+  /* Some operation leading to this automaton went over max_states */
+  final boolean widened;
+
+  private LCAutomaton(char[][] chars0, int[][] targets0, int[] other0, boolean[] accept0,
+      boolean widened0) {
+    chars = chars0;
+    targets = targets0;
+    other = other0;
+    accept = accept0;
+    widened = widened0;
+  }
+
+  int size() {
+    return accept.length;
+  }
+
+  // ///////////////////////////////////////////////
+  static LCAutomaton literal(String str) {
+    int n = str.length();
+    char[][] chars = new char[n + 1][];
+    int[][] targets = new int[n + 1][];
+    int[] other = new int[n + 1];
+    boolean[] accept = new boolean[n + 1];
+    for (int i = 0; i < n; ++i) {
+      chars[i] = new char[] { str.charAt(i) };
+      targets[i] = new int[] { i + 1 };
+      other[i] = -1;
+    }
+    chars[n] = new char[0];
+    targets[n] = new int[0];
+    other[n] = -1;
+    accept[n] = true;
+    return new LCAutomaton(chars, targets, other, accept, false);
+  }
+
+  /* A string in the format of the solvers, where (.*) stands for any string */
+  static LCAutomaton pattern(String str) {
+    if (!str.contains("(.*)"))
+      return literal(str);
+    List<LCAutomaton> parts = new ArrayList<LCAutomaton>();
+    int start = 0;
+    for (int i = str.indexOf("(.*)"); i >= 0; i = str.indexOf("(.*)", start)) {
+      if (i > start)
+        parts.add(literal(str.substring(start, i)));
+      parts.add(ANY);
+      start = i + "(.*)".length();
+    }
+    if (start < str.length())
+      parts.add(literal(str.substring(start)));
+    return concatenate(parts);
+  }
+
+  static LCAutomaton patterns(Collection<?> values) {
+    List<LCAutomaton> res = new ArrayList<LCAutomaton>(values.size());
+    for (Object value : values)
+      res.add((value instanceof String) ? pattern((String) value) : ANY);
+    return union(res);
+  }
+
+  static LCAutomaton union(List<LCAutomaton> automata) {
+    if (automata.isEmpty())
+      return EMPTY;
+    if (automata.size() == 1)
+      return automata.get(0);
+    boolean widened = widened(automata);
+    if (!widened && automata.contains(ANY))
+      return ANY;
+    Nfa nfa = new Nfa();
+    int start = nfa.newState(false);
+    for (LCAutomaton a : automata)
+      nfa.epsilon(start, nfa.embed(a));
+    return nfa.determinize(start, widened);
+  }
+
+  static LCAutomaton concatenate(List<LCAutomaton> automata) {
+    if (automata.isEmpty())
+      return EPSILON;
+    if (automata.size() == 1)
+      return automata.get(0);
+    for (LCAutomaton a : automata)
+      if (a.isEmpty())
+        return EMPTY;
+    Nfa nfa = new Nfa();
+    int start = nfa.newState(true);
+    List<Integer> ends = Collections.singletonList(start);
+    for (LCAutomaton a : automata) {
+      int first = nfa.embed(a);
+      List<Integer> next = nfa.accepting(first, a.size());
+      for (int end : ends) {
+        nfa.accept.set(end, false);
+        nfa.epsilon(end, first);
+      }
+      ends = next;
+    }
+    return nfa.determinize(start, widened(automata));
+  }
+
+  static LCAutomaton concatenate(LCAutomaton a, LCAutomaton b) {
+    return concatenate(Arrays.asList(a, b));
+  }
+
+  static LCAutomaton star(LCAutomaton a) {
+    if (a.isEmpty() || a == EPSILON)
+      return EPSILON;
+    Nfa nfa = new Nfa();
+    int start = nfa.newState(true);
+    int first = nfa.embed(a);
+    nfa.epsilon(start, first);
+    for (int end : nfa.accepting(first, a.size()))
+      nfa.epsilon(end, start);
+    return nfa.determinize(start, a.widened);
+  }
+
+  private static boolean widened(List<LCAutomaton> automata) {
+    for (LCAutomaton a : automata)
+      if (a.widened)
+        return true;
+    return false;
+  }
+
+  // ///////////////////////////////////////////////
+  private int next(int q, char c) {
+    int i = Arrays.binarySearch(chars[q], c);
+    return (i >= 0) ? targets[q][i] : other[q];
+  }
+
+  boolean accepts(String str) {
+    int q = 0;
+    for (int i = 0; i < str.length() && q >= 0; ++i)
+      q = next(q, str.charAt(i));
+    return q >= 0 && accept[q];
+  }
+
+  boolean isEmpty() {
+    // minimal: only the empty language has a rejecting start state without transitions
+    return !accept[0] && other[0] < 0 && chars[0].length == 0;
+  }
+
+  boolean isUniversal() {
+    return equals(ANY);
+  }
+
+  /* Accepts a finite number of strings: no cycle, and no transition on other chars */
+  boolean isFinite() {
+    // every state is live, so any cycle repeats
+    int[] color = new int[size()];
+    return acyclic(0, color);
+  }
+
+  private boolean acyclic(int q, int[] color) {
+    if (other[q] >= 0 || color[q] == 1)
+      return false;
+    if (color[q] == 2)
+      return true;
+    color[q] = 1;
+    for (int t : targets[q])
+      if (!acyclic(t, color))
+        return false;
+    color[q] = 2;
+    return true;
+  }
+
+  /*
+   * The strings of the language in the format of the solvers, with (.*) for a suffix that can be
+   * anything, or null when there are more than limit of them, or the language cannot be written
+   * that way.
+   */
+  Set<String> values(int limit) {
+    Set<String> res = new HashSet<String>();
+    return walk(0, new StringBuilder(), new boolean[size()], limit, res) ? res : null;
+  }
+
+  private boolean walk(int q, StringBuilder prefix, boolean[] onPath, int limit, Set<String> res) {
+    if (accept[q] && other[q] == q && chars[q].length == 0) {
+      res.add(prefix + "(.*)");
+      return res.size() <= limit;
+    }
+    if (other[q] >= 0 || onPath[q])
+      return false;
+    if (accept[q]) {
+      res.add(prefix.toString());
+      if (res.size() > limit)
+        return false;
+    }
+    onPath[q] = true;
+    for (int i = 0; i < chars[q].length; ++i) {
+      prefix.append(chars[q][i]);
+      boolean ok = walk(targets[q][i], prefix, onPath, limit, res);
+      prefix.setLength(prefix.length() - 1);
+      if (!ok)
+        return false;
+    }
+    onPath[q] = false;
+    return true;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj)
+      return true;
+    if (!(obj instanceof LCAutomaton))
+      return false;
+    LCAutomaton a = (LCAutomaton) obj;
+    return Arrays.equals(accept, a.accept) && Arrays.equals(other, a.other)
+        && Arrays.deepEquals(chars, a.chars) && Arrays.deepEquals(targets, a.targets);
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * Arrays.hashCode(accept) + Arrays.deepHashCode(chars);
+  }
+
+  @Override
+  public String toString() {
+    Set<String> values = values(16);
+    if (values != null)
+      return new TreeSet<String>(values).toString();
+    return "automaton(" + size() + " states" + (widened ? ", widened)" : ")");
+  }
+
+  // ///////////////////////////////////////////////
+  /* An automaton with epsilon transitions, only used to build the deterministic ones */
+  private static final class Nfa {
+    private static final int EPSILON = -1;
+    private static final int OTHER = -2;
+
+    /* Per state, the transitions as (label, target): a char, EPSILON or OTHER */
+    final List<int[]> labels = new ArrayList<int[]>();
+    final List<int[]> tos = new ArrayList<int[]>();
+    final List<Integer> sizes = new ArrayList<Integer>();
+    /* The explicit chars that an OTHER transition does not take, per state */
+    final List<char[]> excluded = new ArrayList<char[]>();
+    final BitSet accept = new BitSet();
+
+    int newState(boolean accepting) {
+      int q = sizes.size();
+      labels.add(new int[2]);
+      tos.add(new int[2]);
+      sizes.add(0);
+      excluded.add(null);
+      accept.set(q, accepting);
+      return q;
+    }
+
+    void add(int from, int label, int to) {
+      int n = sizes.get(from);
+      if (n == labels.get(from).length) {
+        labels.set(from, Arrays.copyOf(labels.get(from), 2 * n));
+        tos.set(from, Arrays.copyOf(tos.get(from), 2 * n));
+      }
+      labels.get(from)[n] = label;
+      tos.get(from)[n] = to;
+      sizes.set(from, n + 1);
+    }
+
+    void epsilon(int from, int to) {
+      add(from, EPSILON, to);
+    }
+
+    /* Copies the states of a, and returns the first one */
+    int embed(LCAutomaton a) {
+      int first = sizes.size();
+      for (int q = 0; q < a.size(); ++q)
+        newState(a.accept[q]);
+      for (int q = 0; q < a.size(); ++q) {
+        for (int i = 0; i < a.chars[q].length; ++i)
+          add(first + q, a.chars[q][i], first + a.targets[q][i]);
+        if (a.other[q] >= 0) {
+          add(first + q, OTHER, first + a.other[q]);
+          excluded.set(first + q, a.chars[q]);
+        }
+      }
+      return first;
+    }
+
+    List<Integer> accepting(int first, int n) {
+      List<Integer> res = new ArrayList<Integer>();
+      for (int q = accept.nextSetBit(first); q >= 0 && q < first + n; q = accept.nextSetBit(q + 1))
+        res.add(q);
+      return res;
+    }
+
+    private BitSet closure(BitSet states) {
+      List<Integer> work = new ArrayList<Integer>();
+      for (int q = states.nextSetBit(0); q >= 0; q = states.nextSetBit(q + 1))
+        work.add(q);
+      while (!work.isEmpty()) {
+        int q = work.remove(work.size() - 1);
+        int[] label = labels.get(q);
+        for (int i = 0; i < sizes.get(q); ++i) {
+          int to = tos.get(q)[i];
+          if (label[i] == EPSILON && !states.get(to)) {
+            states.set(to);
+            work.add(to);
+          }
+        }
+      }
+      return states;
+    }
+
+    /* The states reached on c, or on chars that are not explicit anywhere when c < 0 */
+    private BitSet move(BitSet states, int c) {
+      BitSet res = new BitSet();
+      for (int q = states.nextSetBit(0); q >= 0; q = states.nextSetBit(q + 1)) {
+        int[] label = labels.get(q);
+        for (int i = 0; i < sizes.get(q); ++i) {
+          if (label[i] == c && c >= 0)
+            res.set(tos.get(q)[i]);
+          else if (label[i] == OTHER
+              && (c < 0 || Arrays.binarySearch(excluded.get(q), (char) c) < 0))
+            res.set(tos.get(q)[i]);
+        }
+      }
+      return closure(res);
+    }
+
+    /* Subset construction from start, then minimization */
+    LCAutomaton determinize(int start, boolean widened) {
+      Map<BitSet, Integer> ids = new HashMap<BitSet, Integer>();
+      List<BitSet> subsets = new ArrayList<BitSet>();
+      List<char[]> chars = new ArrayList<char[]>();
+      List<int[]> targets = new ArrayList<int[]>();
+      List<Integer> other = new ArrayList<Integer>();
+      BitSet first = new BitSet();
+      first.set(start);
+      ids.put(closure(first), 0);
+      subsets.add(first);
+      for (int d = 0; d < subsets.size(); ++d) {
+        BitSet subset = subsets.get(d);
+        TreeSet<Character> explicit = new TreeSet<Character>();
+        for (int q = subset.nextSetBit(0); q >= 0; q = subset.nextSetBit(q + 1)) {
+          int[] label = labels.get(q);
+          for (int i = 0; i < sizes.get(q); ++i) {
+            if (label[i] >= 0)
+              explicit.add((char) label[i]);
+            else if (label[i] == OTHER)
+              for (char c : excluded.get(q))
+                explicit.add(c);
+          }
+        }
+        char[] cs = new char[explicit.size()];
+        int[] ts = new int[explicit.size()];
+        int k = 0;
+        for (char c : explicit) {
+          cs[k] = c;
+          ts[k++] = id(move(subset, c), ids, subsets);
+        }
+        chars.add(cs);
+        targets.add(ts);
+        other.add(id(move(subset, -1), ids, subsets));
+        if (subsets.size() > max_states)
+          return WIDENED;
+      }
+      boolean[] accepting = new boolean[subsets.size()];
+      for (int d = 0; d < subsets.size(); ++d)
+        accepting[d] = subsets.get(d).intersects(accept);
+      int[] others = new int[other.size()];
+      for (int d = 0; d < others.length; ++d)
+        others[d] = other.get(d);
+      return minimize(chars.toArray(new char[chars.size()][]),
+          targets.toArray(new int[targets.size()][]), others, accepting, widened);
+    }
+
+    private static int id(BitSet subset, Map<BitSet, Integer> ids, List<BitSet> subsets) {
+      if (subset.isEmpty())
+        return -1;
+      Integer id = ids.get(subset);
+      if (id == null) {
+        id = subsets.size();
+        ids.put(subset, id);
+        subsets.add(subset);
+      }
+      return id;
+    }
+  }
+
+  // ///////////////////////////////////////////////
+  /*
+   * Moore's partition refinement, on the states that can reach an accepting state. The classes
+   * are then numbered from the start class, breadth first.
+   */
+  private static LCAutomaton minimize(char[][] chars, int[][] targets, int[] other,
+      boolean[] accept, boolean widened) {
+    int n = accept.length;
+    // live states: those that reach an accepting state
+    boolean[] live = accept.clone();
+    for (boolean changed = true; changed;) {
+      changed = false;
+      for (int q = 0; q < n; ++q) {
+        if (live[q])
+          continue;
+        boolean reaches = other[q] >= 0 && live[other[q]];
+        for (int i = 0; i < targets[q].length && !reaches; ++i)
+          reaches = live[targets[q][i]];
+        if (reaches) {
+          live[q] = true;
+          changed = true;
+        }
+      }
+    }
+    if (!live[0])
+      return widened ? new LCAutomaton(EMPTY.chars, EMPTY.targets, EMPTY.other, EMPTY.accept,
+          true) : EMPTY;
+
+    TreeSet<Character> alphabet = new TreeSet<Character>();
+    for (char[] cs : chars)
+      for (char c : cs)
+        alphabet.add(c);
+    int[] cls = new int[n];
+    for (int q = 0; q < n; ++q)
+      cls[q] = !live[q] ? -1 : (accept[q] ? 1 : 0);
+    int count = -1;
+    while (true) {
+      Map<List<Integer>, Integer> signatures = new HashMap<List<Integer>, Integer>();
+      int[] next = new int[n];
+      for (int q = 0; q < n; ++q) {
+        if (!live[q]) {
+          next[q] = -1;
+          continue;
+        }
+        List<Integer> signature = new ArrayList<Integer>(alphabet.size() + 2);
+        signature.add(cls[q]);
+        signature.add(classOf(other[q], cls));
+        for (char c : alphabet) {
+          int i = Arrays.binarySearch(chars[q], c);
+          signature.add(classOf((i >= 0) ? targets[q][i] : other[q], cls));
+        }
+        Integer id = signatures.get(signature);
+        if (id == null) {
+          id = signatures.size();
+          signatures.put(signature, id);
+        }
+        next[q] = id;
+      }
+      cls = next;
+      if (signatures.size() == count)
+        break;
+      count = signatures.size();
+    }
+
+    // number the classes breadth first, from the class of the start state
+    int[] number = new int[count];
+    Arrays.fill(number, -1);
+    int[] representative = new int[count];
+    int numbered = 0;
+    number[cls[0]] = numbered++;
+    representative[0] = 0;
+    char[][] resChars = new char[count][];
+    int[][] resTargets = new int[count][];
+    int[] resOther = new int[count];
+    boolean[] resAccept = new boolean[count];
+    for (int d = 0; d < numbered; ++d) {
+      int q = representative[d];
+      resAccept[d] = accept[q];
+      int o = classOf(other[q], cls);
+      if (o >= 0 && number[o] < 0) {
+        representative[numbered] = other[q];
+        number[o] = numbered++;
+      }
+      resOther[d] = (o < 0) ? -1 : number[o];
+      List<Character> cs = new ArrayList<Character>();
+      List<Integer> ts = new ArrayList<Integer>();
+      for (int i = 0; i < chars[q].length; ++i) {
+        int t = classOf(targets[q][i], cls);
+        if (t == o)
+          continue; // same as the other chars
+        if (t >= 0 && number[t] < 0) {
+          representative[numbered] = targets[q][i];
+          number[t] = numbered++;
+        }
+        cs.add(chars[q][i]);
+        ts.add((t < 0) ? -1 : number[t]);
+      }
+      resChars[d] = new char[cs.size()];
+      resTargets[d] = new int[ts.size()];
+      for (int i = 0; i < cs.size(); ++i) {
+        resChars[d][i] = cs.get(i);
+        resTargets[d][i] = ts.get(i);
+      }
+    }
+    return new LCAutomaton(Arrays.copyOf(resChars, numbered), Arrays.copyOf(resTargets, numbered),
+        Arrays.copyOf(resOther, numbered), Arrays.copyOf(resAccept, numbered), widened);
+  }
+
+  private static int classOf(int q, int[] cls) {
+    return (q < 0) ? -1 : cls[q];
+  }
+}
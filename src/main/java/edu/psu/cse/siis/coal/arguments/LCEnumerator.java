@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2015 The University of Wisconsin and the Pennsylvania State University
+ *
+ * Author: Daniel Luchaup
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.psu.cse.siis.coal.arguments;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/*
+ * The strings of a box, computed as they are asked for, instead of the whole result set of a
+ * solver. The strings are those of RecursiveDAGSolverVisitorLC with the same inline depth, with
+ * (.*) for nodes met again on their own path.
+ *
+ * A union goes through its elements one after the other, and a concatenation through the product
+ * of its parts like an odometer, asking the last part again for each value of the others. Only the
+ * current value of each part is kept, and what is below a part is only looked at when it is
+ * reached. A StringOp needs all the values of its operands, and a call the values of its arguments
+ * (see ReturnSummaries): both are solved as a whole, by a RecursiveDAGSolverVisitorLC. Below the
+ * inline depth a call is (.*).
+ *
+ * Each string is returned once. A union skips the strings it already gave, and the iterator the
+ * strings it returned: both keep them, so memory grows with the number of strings returned. A string may still be produced many times below the iterator, e.g. by a product whose
+ * parts split it in different ways, and hasNext() skips these duplicates one after the other: it
+ * may take long on a graph that gives few distinct strings in many ways.
+ *
+ * The graph must not change while iterating, unless the iterating thread pinned an LCSnapshot.
+ */
+class LCEnumerator implements Iterable<String> {
+  final LanguageConstraints.Box lcb;
+  /* How many levels of calls are inlined */
+  final int inline_depth;
+
+  LCEnumerator(LanguageConstraints.Box lcb0, int inline_depth0) {
+    lcb = lcb0;
+    inline_depth = inline_depth0;
+  }
+
+  LCEnumerator(LanguageConstraints.Box lcb0) {
+    this(lcb0, 0);
+  }
+
+  /* At most n strings of lcb */
+  static List<String> first(LanguageConstraints.Box lcb, int n) {
+    return first(lcb, 0, n);
+  }
+
+  /* At most n strings of lcb, with calls inlined inline_depth levels deep */
+  static List<String> first(LanguageConstraints.Box lcb, int inline_depth, int n) {
+    List<String> res = new ArrayList<String>();
+    for (Iterator<String> it = new LCEnumerator(lcb, inline_depth).iterator(); res.size() < n
+        && it.hasNext();)
+      res.add(it.next());
+    return res;
+  }
+
+  @Override
+  public Iterator<String> iterator() {
+    final Gen gen = gen(lcb, null);
+    return new Iterator<String>() {
+      private final Set<String> returned = new HashSet<String>();
+      private String next = null;
+
+      @Override
+      public boolean hasNext() {
+        while (next == null) {
+          String str = gen.next();
+          if (str == null)
+            return false;
+          if (returned.add(str))
+            next = str;
+        }
+        return true;
+      }
+
+      @Override
+      public String next() {
+        if (!hasNext())
+          throw new NoSuchElementException();
+        String res = next;
+        next = null;
+        return res;
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  // ///////////////////////////////////////////////
+  /* The nodes on the current path that may be on a cycle */
+  private static final class Path {
+    final LanguageConstraints lc;
+    final Path next;
+
+    Path(LanguageConstraints lc0, Path next0) {
+      lc = lc0;
+      next = next0;
+    }
+
+    static boolean contains(Path path, LanguageConstraints lc) {
+      for (; path != null; path = path.next)
+        if (path.lc == lc || path.lc.equals(lc))
+          return true;
+      return false;
+    }
+  }
+
+  /* Generator of strings, possibly repeated; null once there are no more */
+  private static abstract class Gen {
+    abstract String next();
+  }
+
+  private static final class Values extends Gen {
+    private final Iterator<?> it;
+
+    Values(Iterator<?> it0) {
+      it = it0;
+    }
+
+    @Override
+    String next() {
+      if (!it.hasNext())
+        return null;
+      Object value = it.next();
+      return (value instanceof String) ? (String) value : "(.*)";
+    }
+  }
+
+  private static Gen single(String str) {
+    return new Values(Arrays.asList(str).iterator());
+  }
+
+  private Gen gen(LanguageConstraints.Box lcb, Path path) {
+    LanguageConstraints lc = (lcb == null) ? null : lcb.getLC();
+    if (lc == null)
+      return new Values(new ArrayList<String>().iterator());
+    switch (lc.kind) {
+    case LanguageConstraints.TOP:
+      return new Values(new ArrayList<String>().iterator());
+    case LanguageConstraints.BOTTOM:
+    case LanguageConstraints.STAR:
+      return single("(.*)");
+    case LanguageConstraints.CALL:
+      if (inline_depth == 0)
+        return single("(.*)");
+      return solved(lcb);
+    case LanguageConstraints.TERMINAL:
+      return single(((LanguageConstraints.Terminal) lc).term);
+    case LanguageConstraints.TERMINAL_SET:
+      return new Values(Arrays.asList(((LanguageConstraints.TerminalSet) lc).terms).iterator());
+    case LanguageConstraints.PENDING:
+      throw new RuntimeException("BAD PENDING!");
+    default:
+      break;
+    }
+    // same as RecursiveDAGSolverVisitorLC.mayRecur, outside of a call context
+    if (SCCIndex.v(true).reachesCycle(lc)) {
+      if (Path.contains(path, lc))
+        return single("(.*)");
+      path = new Path(lc, path);
+    }
+    switch (lc.kind) {
+    case LanguageConstraints.PARAMETER: {
+      LanguageConstraints.Parameter lcp = (LanguageConstraints.Parameter) lc;
+      return gen(Res2Constr.getArgument(lcp.sm, lcp.paramNum), path);
+    }
+    case LanguageConstraints.UNION:
+      return new Alternatives(((LanguageConstraints.Union) lc).elements, path);
+    case LanguageConstraints.CONCATENATE: {
+      LanguageConstraints.Concatenate lcc = (LanguageConstraints.Concatenate) lc;
+      return new Product(new LanguageConstraints.Box[] { lcc.left, lcc.right }, path);
+    }
+    case LanguageConstraints.CONCATENATE_N:
+      return new Product(((LanguageConstraints.ConcatenateN) lc).parts, path);
+    case LanguageConstraints.EQ:
+      return gen(((LanguageConstraints.Eq) lc).lcb, path);
+    case LanguageConstraints.STRING_OP:
+      return solved(lcb);
+    default:
+      throw new RuntimeException("Unexpected constraint kind: " + lc.kind);
+    }
+  }
+
+  /* The values of lcb, solved as a whole */
+  private Gen solved(LanguageConstraints.Box lcb) {
+    RecursiveDAGSolverVisitorLC solver = new RecursiveDAGSolverVisitorLC(inline_depth);
+    solver.solve(lcb);
+    return new Values(solver.result.iterator());
+  }
+
+  /* The strings of each element in turn, each once */
+  private final class Alternatives extends Gen {
+    private final List<LanguageConstraints.Box> elements;
+    private final Path path;
+    private int index = 0;
+    private Gen current = null;
+    private final Set<String> seen = new HashSet<String>();
+
+    Alternatives(List<LanguageConstraints.Box> elements0, Path path0) {
+      elements = elements0;
+      path = path0;
+    }
+
+    @Override
+    String next() {
+      while (true) {
+        if (current != null) {
+          String str = current.next();
+          if (str == null)
+            current = null;
+          else if (seen.add(str))
+            return str;
+          continue;
+        }
+        if (index == elements.size())
+          return null;
+        current = gen(elements.get(index++), path);
+      }
+    }
+  }
+
+  /* The concatenations of one string per part, the last part changing first */
+  private final class Product extends Gen {
+    private final LanguageConstraints.Box[] parts;
+    private final Path path;
+    private final Gen[] gens;
+    private final String[] values;
+    private boolean started = false;
+
+    Product(LanguageConstraints.Box[] parts0, Path path0) {
+      parts = parts0;
+      path = path0;
+      gens = new Gen[parts.length];
+      values = new String[parts.length];
+    }
+
+    @Override
+    String next() {
+      int k;
+      if (!started) {
+        started = true;
+        k = 0;
+      } else {
+        // the last part that still has values
+        for (k = parts.length - 1; k >= 0; --k) {
+          if (gens[k] == null)
+            return null; // an empty part
+          String str = gens[k].next();
+          if (str != null) {
+            values[k] = str;
+            break;
+          }
+        }
+        if (k < 0)
+          return null;
+        ++k;
+      }
+      // restart the parts after k
+      for (; k < parts.length; ++k) {
+        gens[k] = gen(parts[k], path);
+        values[k] = gens[k].next();
+        if (values[k] == null) {
+          Arrays.fill(gens, null); // no values at all
+          return null;
+        }
+      }
+      // in the normal form of the solvers, without (.*)(.*)
+      String res = (values.length == 0) ? "" : values[0];
+      for (int i = 1; i < values.length; ++i)
+        res = StringPattern.concat(res, values[i]);
+      return res;
+    }
+  }
+}
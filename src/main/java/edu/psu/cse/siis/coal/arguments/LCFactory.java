@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2015 The University of Wisconsin and the Pennsylvania State University
+ *
+ * Author: Daniel Luchaup
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.psu.cse.siis.coal.arguments;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import soot.SootMethod;
+
+/*
+ * Hash-consing factory for the immutable parts of the constraint graph.
+ *
+ * Nodes are interned by kind and children, where children are compared by box identity. This is
+ * only correct for boxes that are never mutated after they are built, i.e. the "temporaries"
+ * produced while evaluating an expression. The boxes owned by Res2Constr (statements, fields,
+ * returns, arguments) receive new constraints through Res2Constr.putInBox and must NOT be created
+ * here. Likewise, the Union built by union() must never be extended with addLCB.
+ *
+ * The tables are session-scoped, like the maps in Res2Constr: ConstraintCollector.globalCollection
+ * calls reset() before and after collecting, so that they do not keep the nodes of another graph.
+ * The methods are synchronized, for the threads solving while the tables are in use.
+ */
+class LCFactory {
+  private static Map<String, LanguageConstraints.Terminal> terminals =
+      new HashMap<String, LanguageConstraints.Terminal>();
+  private static Map<String, LanguageConstraints.Box> terminalBoxes =
+      new HashMap<String, LanguageConstraints.Box>();
+  private static Map<Key, LanguageConstraints.Box> parameterBoxes =
+      new HashMap<Key, LanguageConstraints.Box>();
+  private static Map<Key, LanguageConstraints.Box> concatenateBoxes =
+      new HashMap<Key, LanguageConstraints.Box>();
+  private static Map<Key, LanguageConstraints.Box> starBoxes =
+      new HashMap<Key, LanguageConstraints.Box>();
+  private static Map<Key, LanguageConstraints.Box> stringOpBoxes =
+      new HashMap<Key, LanguageConstraints.Box>();
+  private static Map<Key, LanguageConstraints.Box> unionBoxes =
+      new HashMap<Key, LanguageConstraints.Box>();
+  private static Map<List<String>, LanguageConstraints.TerminalSet> terminalSets =
+      new HashMap<List<String>, LanguageConstraints.TerminalSet>();
+  private static LanguageConstraints.Box topBox = null;
+
+  static int hits = 0;
+  static int misses = 0;
+
+  static final String NULL_CONSTANT = "NULL-CONSTANT";
+
+  // /////////////////////////////////////////////
+  static synchronized LanguageConstraints.Terminal terminal(String str) {
+    LanguageConstraints.Terminal t = terminals.get(str);
+    if (t == null) {
+      t = new LanguageConstraints.Terminal(str);
+      terminals.put(str, t);
+      misses++;
+    } else
+      hits++;
+    return t;
+  }
+
+  static synchronized LanguageConstraints.Box terminalBox(String str) {
+    LanguageConstraints.Box lcb = terminalBoxes.get(str);
+    if (lcb == null) {
+      lcb = new LanguageConstraints.Box(terminal(str));
+      terminalBoxes.put(str, lcb);
+    } else
+      hits++;
+    return lcb;
+  }
+
+  /* terms does not need to be sorted; the strings are shared with the interned terminals */
+  static synchronized LanguageConstraints.TerminalSet terminalSet(Collection<String> terms) {
+    TreeSet<String> sorted = new TreeSet<String>(terms);
+    String[] arr = new String[sorted.size()];
+    int i = 0;
+    for (String str : sorted)
+      arr[i++] = terminal(str).term;
+    return terminalSet(arr);
+  }
+
+  /* sorted_terms must be sorted and without duplicates */
+  static synchronized LanguageConstraints.TerminalSet terminalSet(String[] sorted_terms) {
+    List<String> key = Arrays.asList(sorted_terms);
+    LanguageConstraints.TerminalSet ts = terminalSets.get(key);
+    if (ts == null) {
+      ts = new LanguageConstraints.TerminalSet(sorted_terms);
+      terminalSets.put(key, ts);
+      misses++;
+    } else
+      hits++;
+    return ts;
+  }
+
+  static synchronized LanguageConstraints.Box nullConstantBox() {
+    return terminalBox(NULL_CONSTANT);
+  }
+
+  static synchronized LanguageConstraints.Box topBox() {
+    if (topBox == null)
+      topBox = new LanguageConstraints.Box(LanguageConstraints.Top.v());
+    return topBox;
+  }
+
+  static synchronized LanguageConstraints.Box parameterBox(SootMethod sm, int paramNum) {
+    Key key = new Key(sm, paramNum);
+    LanguageConstraints.Box lcb = parameterBoxes.get(key);
+    if (lcb == null) {
+      lcb = new LanguageConstraints.Box(new LanguageConstraints.Parameter(sm, paramNum));
+      parameterBoxes.put(key, lcb);
+      misses++;
+    } else
+      hits++;
+    return lcb;
+  }
+
+  static synchronized LanguageConstraints.Box concatenate(LanguageConstraints.Box l,
+      LanguageConstraints.Box r) {
+    Key key = new Key(l, r);
+    LanguageConstraints.Box lcb = concatenateBoxes.get(key);
+    if (lcb == null) {
+      lcb = new LanguageConstraints.Box(new LanguageConstraints.Concatenate(l, r));
+      concatenateBoxes.put(key, lcb);
+      misses++;
+    } else
+      hits++;
+    return lcb;
+  }
+
+  static synchronized LanguageConstraints.Box star(LanguageConstraints.Box body) {
+    Key key = new Key(body);
+    LanguageConstraints.Box lcb = starBoxes.get(key);
+    if (lcb == null) {
+      lcb = new LanguageConstraints.Box(new LanguageConstraints.Star(body));
+      starBoxes.put(key, lcb);
+      misses++;
+    } else
+      hits++;
+    return lcb;
+  }
+
+  /* Operation op on operands, see LanguageConstraints.StringOp */
+  static synchronized LanguageConstraints.Box stringOp(int op, LanguageConstraints.Box[] operands,
+      int... ints) {
+    Object[] parts = new Object[1 + ints.length + operands.length];
+    parts[0] = op;
+    for (int i = 0; i < ints.length; ++i)
+      parts[1 + i] = ints[i];
+    System.arraycopy(operands, 0, parts, 1 + ints.length, operands.length);
+    Key key = new Key(parts);
+    LanguageConstraints.Box lcb = stringOpBoxes.get(key);
+    if (lcb == null) {
+      lcb = new LanguageConstraints.Box(new LanguageConstraints.StringOp(op, operands, ints));
+      stringOpBoxes.put(key, lcb);
+      misses++;
+    } else
+      hits++;
+    return lcb;
+  }
+
+  static synchronized LanguageConstraints.Box union(List<LanguageConstraints.Box> lst) {
+    Key key = new Key(lst.toArray());
+    LanguageConstraints.Box lcb = unionBoxes.get(key);
+    if (lcb == null) {
+      LanguageConstraints.Union lcu = new LanguageConstraints.Union();
+      for (LanguageConstraints.Box elm : lst)
+        lcu.addLCB(elm);
+      lcb = new LanguageConstraints.Box(lcu);
+      unionBoxes.put(key, lcb);
+      misses++;
+    } else
+      hits++;
+    return lcb;
+  }
+
+  static synchronized void reset() {
+    terminals.clear();
+    terminalBoxes.clear();
+    terminalSets.clear();
+    parameterBoxes.clear();
+    concatenateBoxes.clear();
+    unionBoxes.clear();
+    starBoxes.clear();
+    stringOpBoxes.clear();
+    topBox = null;
+    hits = 0;
+    misses = 0;
+  }
+
+  /*
+   * Children are compared by identity: two boxes with the same content are still different nodes,
+   * since either one may be a box that is later extended by Res2Constr.
+   */
+  private static final class Key {
+    private final Object[] parts;
+    private final int hash;
+
+    Key(Object... parts0) {
+      parts = parts0;
+      int h = 1;
+      for (Object o : parts)
+        h = 31 * h + ((o instanceof Integer) ? o.hashCode() : System.identityHashCode(o));
+      hash = h;
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key))
+        return false;
+      Object[] other = ((Key) obj).parts;
+      if (other.length != parts.length)
+        return false;
+      for (int i = 0; i < parts.length; ++i) {
+        if (parts[i] instanceof Integer) {
+          if (!parts[i].equals(other[i]))
+            return false;
+        } else if (parts[i] != other[i])
+          return false;
+      }
+      return true;
+    }
+  }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2015 The University of Wisconsin and the Pennsylvania State University
+ *
+ * Author: Daniel Luchaup
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.psu.cse.siis.coal.arguments;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * 64-bit structural fingerprints of constraint nodes: two subgraphs with the same shape and the
+ * same leaves have the same fingerprint, whatever the identity of their nodes and boxes. Union
+ * children are combined independently of their order, and Eq is transparent.
+ *
+ * The fingerprint is stored in the node. Leaves are computed once; inner nodes are stamped with
+ * LanguageConstraints.g_version and stay valid as long as nothing below them changed, i.e. until
+ * the last change to the boxes and unions they reach (SCCIndex.changed) is newer than the stamp.
+ * After a change, e.g. through Res2Constr.putInBox, only the nodes above it are hashed again. A call
+ * is hashed with its callee and its site, the method it is in and the index of its statement, which
+ * do not change from one run to the next. The computation goes bottom-up over the SCCs of the graph: the members of a
+ * cycle are hashed together, from the local content of each member and the fingerprints of the
+ * edges leaving the cycle, and then each member mixes in that hash. Fingerprints of nodes in a
+ * cycle are a weaker key, since two members of the same cycle may get the same value; check
+ * SCCIndex.inCycle before relying on them.
+ *
+ * A thread that pinned an LCSnapshot keeps the fingerprints in the snapshot rather than in the
+ * nodes, which follow the live graph and are shared with the other threads.
+ */
+class LCFingerprint {
+  private static final long NULL_FP = 0x5bd1e9955bd1e995L;
+  private static final long FIELD_SALT = 0x9e3779b97f4a7c15L;
+  private static final long CYCLE_SALT = 0xc2b2ae3d27d4eb4fL;
+
+  static long of(LanguageConstraints.Box lcb) {
+    if (lcb == null)
+      return NULL_FP;
+    long fp = of(lcb.getLC());
+    // a field box evaluates its content in field mode, which is not the same language
+    return (lcb instanceof LanguageConstraints.FieldBox) ? mix(fp ^ FIELD_SALT) : fp;
+  }
+
+  static long of(LanguageConstraints lc) {
+    if (lc == null)
+      return NULL_FP;
+    if (isValid(lc))
+      return stored(lc);
+    SCCIndex idx = SCCIndex.v(false, true);
+    List<LanguageConstraints> stack = new ArrayList<LanguageConstraints>();
+    stack.add(lc);
+    while (!stack.isEmpty()) {
+      LanguageConstraints top = stack.get(stack.size() - 1);
+      if (isValid(top)) {
+        stack.remove(stack.size() - 1);
+        continue;
+      }
+      List<LanguageConstraints> component = idx.component(top);
+      boolean ready = true;
+      for (LanguageConstraints member : component)
+        for (LanguageConstraints succ : idx.successors(member))
+          if (isInner(succ) && idx.component(succ) != component
+              && !isValid(succ)) {
+            stack.add(succ);
+            ready = false;
+          }
+      if (ready) {
+        stack.remove(stack.size() - 1);
+        compute(component, idx);
+      }
+    }
+    return stored(lc);
+  }
+
+  static boolean isValid(LanguageConstraints lc) {
+    LCSnapshot snap = LCSnapshot.current();
+    if (snap != null)
+      return snap.fingerprints.containsKey(lc);
+    int stamp = lc.fingerprint_version;
+    if (stamp == LanguageConstraints.g_version)
+      return true;
+    if (stamp < 0)
+      return false;
+    // leaves never change
+    return !isInner(lc) || stamp >= SCCIndex.v(false, true).changed(lc);
+  }
+
+  /* Leaves are computed on the spot, whether or not they are stored */
+  private static boolean isInner(LanguageConstraints lc) {
+    switch (lc.kind) {
+    case LanguageConstraints.UNION:
+    case LanguageConstraints.CONCATENATE:
+    case LanguageConstraints.CONCATENATE_N:
+    case LanguageConstraints.EQ:
+    case LanguageConstraints.STAR:
+    case LanguageConstraints.STRING_OP:
+    case LanguageConstraints.CALL:
+      return true;
+    default:
+      return false;
+    }
+  }
+
+  private static long stored(LanguageConstraints lc) {
+    LCSnapshot snap = LCSnapshot.current();
+    return (snap == null) ? lc.fingerprint : snap.fingerprints.get(lc);
+  }
+
+  // ///////////////////////////////////////////////
+  /* The successors of the members that are not in component are done */
+  private static void compute(List<LanguageConstraints> component, SCCIndex idx) {
+    if (component.size() == 1 && !idx.inCycle(component.get(0))) {
+      LanguageConstraints lc = component.get(0);
+      store(lc, combine(lc, null, idx));
+      return;
+    }
+    // every member depends on the whole cycle, including all the edges that leave it
+    long scc = mix(component.size() ^ CYCLE_SALT);
+    long[] fps = new long[component.size()];
+    for (int i = 0; i < fps.length; ++i) {
+      fps[i] = combine(component.get(i), component, idx);
+      scc += mix(fps[i]);
+    }
+    for (int i = 0; i < fps.length; ++i)
+      store(component.get(i), mix(fps[i] ^ scc));
+  }
+
+  private static void store(LanguageConstraints lc, long fp) {
+    LCSnapshot snap = LCSnapshot.current();
+    if (snap != null) {
+      snap.fingerprints.put(lc, fp);
+      return;
+    }
+    lc.fingerprint = fp;
+    lc.fingerprint_version = LanguageConstraints.g_version;
+  }
+
+  /* Edges into component stand for the local content of their target */
+  private static long child(LanguageConstraints.Box lcb, List<LanguageConstraints> component,
+      SCCIndex idx) {
+    LanguageConstraints lc = (lcb == null) ? null : lcb.getLC();
+    if (lc == null || component == null || idx.component(lc) != component)
+      return of(lcb);
+    long fp = mix(local(lc) ^ CYCLE_SALT);
+    return (lcb instanceof LanguageConstraints.FieldBox) ? mix(fp ^ FIELD_SALT) : fp;
+  }
+
+  private static long combine(LanguageConstraints lc, List<LanguageConstraints> component,
+      SCCIndex idx) {
+    long h = local(lc);
+    switch (lc.kind) {
+    case LanguageConstraints.UNION: {
+      long sum = 0;
+      for (LanguageConstraints.Box elm : ((LanguageConstraints.Union) lc).elements)
+        sum += mix(child(elm, component, idx));
+      return mix(h ^ sum);
+    }
+    case LanguageConstraints.CONCATENATE: {
+      LanguageConstraints.Concatenate lcc = (LanguageConstraints.Concatenate) lc;
+      return mix(mix(h ^ child(lcc.left, component, idx)) + child(lcc.right, component, idx));
+    }
+    case LanguageConstraints.EQ:
+      if (component == null)
+        return child(((LanguageConstraints.Eq) lc).lcb, component, idx);
+      return mix(h ^ child(((LanguageConstraints.Eq) lc).lcb, component, idx));
+    case LanguageConstraints.STAR:
+      return mix(h ^ child(((LanguageConstraints.Star) lc).lcb, component, idx));
+    case LanguageConstraints.CONCATENATE_N:
+      for (LanguageConstraints.Box part : ((LanguageConstraints.ConcatenateN) lc).parts)
+        h = mix(h + child(part, component, idx));
+      return h;
+    case LanguageConstraints.STRING_OP:
+      for (LanguageConstraints.Box operand : ((LanguageConstraints.StringOp) lc).operands)
+        h = mix(h + child(operand, component, idx));
+      return h;
+    case LanguageConstraints.CALL:
+      for (LanguageConstraints.Box arg : ((LanguageConstraints.Call) lc).arguments)
+        h = mix(h + child(arg, component, idx));
+      return h;
+    default:
+      return h;
+    }
+  }
+
+  /* What a node contributes by itself, without its children */
+  private static long local(LanguageConstraints lc) {
+    long h = mix(lc.kind + 1);
+    switch (lc.kind) {
+    case LanguageConstraints.TERMINAL:
+      return mix(h ^ hash(((LanguageConstraints.Terminal) lc).term));
+    case LanguageConstraints.TERMINAL_SET: {
+      for (String term : ((LanguageConstraints.TerminalSet) lc).terms)
+        h = mix(h ^ hash(term));
+      return h;
+    }
+    case LanguageConstraints.PARAMETER: {
+      LanguageConstraints.Parameter lcp = (LanguageConstraints.Parameter) lc;
+      return mix(h ^ hash(lcp.sm.getSignature()) + lcp.paramNum);
+    }
+    case LanguageConstraints.STRING_OP: {
+      LanguageConstraints.StringOp lcs = (LanguageConstraints.StringOp) lc;
+      h = mix(h ^ lcs.op);
+      for (int i : lcs.ints)
+        h = mix(h + i);
+      return h;
+    }
+    case LanguageConstraints.CALL: {
+      LanguageConstraints.Call lcc = (LanguageConstraints.Call) lc;
+      h = mix(h ^ hash(lcc.callee().getSignature()));
+      if (lcc.site() < 0)
+        return mix(h + hash(lcc.stmt.toString()));
+      return mix(mix(h + hash(lcc.sm_context.getSignature())) + lcc.site());
+    }
+    default:
+      return h;
+    }
+  }
+
+  /* FNV-1a over the chars of str */
+  static long hash(String str) {
+    long h = 0xcbf29ce484222325L;
+    for (int i = 0; i < str.length(); ++i) {
+      h ^= str.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    return h;
+  }
+
+  /* splitmix64 finalizer */
+  static long mix(long z) {
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    return z ^ (z >>> 31);
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2015 The University of Wisconsin and the Pennsylvania State University
+ *
+ * Author: Daniel Luchaup
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.psu.cse.siis.coal.arguments;
+
+import java.util.Arrays;
+
+/*
+ * Marks for the nodes on the current path of a visitor, instead of a HashSet: one int stamp per
+ * LanguageConstraints.uid, so marking neither hashes nor allocates.
+ *
+ * Each visitor takes a fresh epoch, and a node is on its path when the stamp of the node is that
+ * epoch. mark() returns the previous stamp, which unmark() must put back: visitors nest on the same
+ * thread (e.g. the fresh solver of RecursiveDAGSolverVisitorLC.caseCall), and the inner one must
+ * not clear the marks of the outer one.
+ *
+ * The stamps belong to a thread, so that threads solving in parallel do not see each other's
+ * marks. A visitor uses the marks of the thread that created it; it may be run by another thread
+ * only while its creator waits for it, as LCWalker does.
+ */
+final class LCMarks {
+  private static final ThreadLocal<LCMarks> marks = new ThreadLocal<LCMarks>() {
+    @Override
+    protected LCMarks initialValue() {
+      return new LCMarks();
+    }
+  };
+
+  private int[] stamps = new int[1024];
+  private int epochs = 0;
+
+  private LCMarks() {
+  }
+
+  /* The marks of the current thread */
+  static LCMarks get() {
+    return marks.get();
+  }
+
+  int newEpoch() {
+    if (epochs == Integer.MAX_VALUE) {
+      // only reached after 2^31 visitors on this thread
+      Arrays.fill(stamps, 0);
+      epochs = 0;
+    }
+    return ++epochs;
+  }
+
+  boolean isMarked(LanguageConstraints lc, int epoch) {
+    int uid = lc.uid;
+    return uid < stamps.length && stamps[uid] == epoch;
+  }
+
+  /* Returns what to pass to unmark() */
+  int mark(LanguageConstraints lc, int epoch) {
+    int uid = lc.uid;
+    if (uid >= stamps.length)
+      stamps = Arrays.copyOf(stamps, Math.max(2 * stamps.length, uid + 1));
+    int prev = stamps[uid];
+    stamps[uid] = epoch;
+    return prev;
+  }
+
+  void unmark(LanguageConstraints lc, int prev) {
+    stamps[lc.uid] = prev;
+  }
+}
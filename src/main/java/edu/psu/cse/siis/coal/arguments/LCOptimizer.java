@@ -0,0 +1,569 @@
+/*
+ * Copyright (C) 2015 The University of Wisconsin and the Pennsylvania State University
+ *
+ * Author: Daniel Luchaup
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.psu.cse.siis.coal.arguments;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/*
+ * Pass pipeline that simplifies the constraint graph once collection is done, before solving.
+ *
+ * A pass rewrites one box at a time, replacing its LC by an equivalent one. Passes may look
+ * through closed boxes (see Box.open), but must keep a reference to every open box they reach:
+ * open boxes can still be extended by methods that are collected lazily later on. For the same
+ * reason an open box never ends up sharing a Union with another box.
+ */
+class LCOptimizer {
+  static interface Pass {
+    String name();
+
+    /* Rewrite lcb in place; returns true if anything changed. */
+    boolean run(LanguageConstraints.Box lcb);
+  }
+
+  private static final int MAX_ROUNDS = 4;
+  private static final int MAX_CHAIN = 1000;
+
+  /* SCCs of the graph at the start of the current round */
+  private static SCCIndex round_index;
+
+  final List<Pass> passes = new ArrayList<Pass>();
+  final int[] rewrites;
+
+  LCOptimizer(List<Pass> passes0) {
+    passes.addAll(passes0);
+    rewrites = new int[passes.size()];
+  }
+
+  static LCOptimizer defaultPipeline() {
+    List<Pass> passes = new ArrayList<Pass>();
+    passes.add(new EqElision());
+    passes.add(new UnionFlattening());
+    passes.add(new LoopSummarization());
+    passes.add(new TerminalSetPacking());
+    passes.add(new ConstantFolding());
+    passes.add(new ConcatenateFlattening());
+    passes.add(new BottomAbsorption());
+    return new LCOptimizer(passes);
+  }
+
+  void run(Collection<LanguageConstraints.Box> roots) {
+    checkUnpinned();
+    try {
+      for (int round = 0; round < MAX_ROUNDS; ++round) {
+        boolean changed = false;
+        List<LanguageConstraints.Box> boxes = reachable(roots);
+        // every rewrite changes the version of the graph: do not rebuild the index for each box
+        round_index = SCCIndex.detached(false);
+        for (int i = 0; i < passes.size(); ++i) {
+          Pass pass = passes.get(i);
+          for (LanguageConstraints.Box lcb : boxes) {
+            if (pass.run(lcb)) {
+              rewrites[i]++;
+              changed = true;
+            }
+          }
+        }
+        if (!changed)
+          break;
+      }
+    } finally {
+      round_index = null;
+    }
+    for (int i = 0; i < passes.size(); ++i)
+      DBG.print("LCOptimizer: %s rewrote %d boxes", passes.get(i).name(), rewrites[i]);
+  }
+
+  /* Boxes reachable from roots, children before parents */
+  static List<LanguageConstraints.Box> reachable(Collection<LanguageConstraints.Box> roots) {
+    List<LanguageConstraints.Box> res = new ArrayList<LanguageConstraints.Box>();
+    Set<LanguageConstraints.Box> visited =
+        Collections.newSetFromMap(new IdentityHashMap<LanguageConstraints.Box, Boolean>());
+    List<LanguageConstraints.Box> stack = new ArrayList<LanguageConstraints.Box>();
+    List<Boolean> expanded = new ArrayList<Boolean>();
+    for (LanguageConstraints.Box root : roots) {
+      if (root == null || !visited.add(root))
+        continue;
+      stack.add(root);
+      expanded.add(false);
+      while (!stack.isEmpty()) {
+        int top = stack.size() - 1;
+        LanguageConstraints.Box lcb = stack.get(top);
+        if (expanded.get(top)) {
+          stack.remove(top);
+          expanded.remove(top);
+          res.add(lcb);
+          continue;
+        }
+        expanded.set(top, true);
+        for (LanguageConstraints.Box child : children(lcb.getLC())) {
+          if (child != null && visited.add(child)) {
+            stack.add(child);
+            expanded.add(false);
+          }
+        }
+      }
+    }
+    return res;
+  }
+
+  /* The in-place rewrites of unions do not record revisions for the pinned snapshots */
+  static void checkUnpinned() {
+    if (LCSnapshot.pinned != 0)
+      throw new IllegalStateException("LCOptimizer cannot run while a snapshot is pinned");
+  }
+
+  /*
+   * The SCCs for the passes. The rewrites only take paths away, so the index of the round
+   * over-approximates the cycles (see SCCIndex.detached); the next round sees the changes.
+   */
+  static SCCIndex sccIndex() {
+    SCCIndex idx = round_index;
+    return (idx != null) ? idx : SCCIndex.v(false);
+  }
+
+  static List<LanguageConstraints.Box> children(LanguageConstraints lc) {
+    return (lc == null) ? Collections.<LanguageConstraints.Box> emptyList() : LCWalker.children(lc,
+        true);
+  }
+
+  // ///////////////////////////////////////////////
+  /* A box we can look through: its LC will never change, and applying it has no side effect */
+  static boolean isTransparent(LanguageConstraints.Box lcb) {
+    return !lcb.open && !(lcb instanceof LanguageConstraints.FieldBox);
+  }
+
+  /* The last box of a chain of transparent Eq boxes */
+  static LanguageConstraints.Box resolve(LanguageConstraints.Box lcb) {
+    LanguageConstraints.Box cur = lcb;
+    for (int steps = 0; steps < MAX_CHAIN; ++steps) {
+      if (!isTransparent(cur) || !(cur.getLC() instanceof LanguageConstraints.Eq))
+        return cur;
+      LanguageConstraints.Box next = ((LanguageConstraints.Eq) cur.getLC()).lcb;
+      if (next == lcb)
+        return cur; // cycle of Eq
+      cur = next;
+    }
+    return cur;
+  }
+
+  /* The LC of lcb after looking through transparent boxes, or null if it cannot be known */
+  static LanguageConstraints contentOf(LanguageConstraints.Box lcb) {
+    LanguageConstraints.Box target = resolve(lcb);
+    return isTransparent(target) ? target.getLC() : null;
+  }
+
+  /* Make lcb denote the same language as other; returns false if there is nothing to do */
+  static boolean install(LanguageConstraints.Box lcb, LanguageConstraints.Box other) {
+    LanguageConstraints.Box target = resolve(other);
+    if (target == lcb)
+      return false;
+    LanguageConstraints lc = isTransparent(target) ? target.getLC() : null;
+    if (lc == null) {
+      if (lcb.getLC() instanceof LanguageConstraints.Eq
+          && ((LanguageConstraints.Eq) lcb.getLC()).lcb == target)
+        return false;
+      lcb.setLC(new LanguageConstraints.Eq(target));
+      return true;
+    }
+    if (lc == lcb.getLC())
+      return false;
+    if (lcb.open && lc instanceof LanguageConstraints.Union) {
+      // do not let Res2Constr.putInBox extend the union of another box
+      LanguageConstraints.Union copy = new LanguageConstraints.Union();
+      copy.elements.addAll(((LanguageConstraints.Union) lc).elements);
+      lc = copy;
+    }
+    lcb.setLC(lc);
+    return true;
+  }
+
+  /* The terms of a Terminal or TerminalSet, null otherwise */
+  static String[] termsOf(LanguageConstraints lc) {
+    if (lc instanceof LanguageConstraints.Terminal)
+      return new String[] { ((LanguageConstraints.Terminal) lc).term };
+    if (lc instanceof LanguageConstraints.TerminalSet)
+      return ((LanguageConstraints.TerminalSet) lc).terms;
+    return null;
+  }
+
+  static boolean isTerminal(LanguageConstraints lc, String term) {
+    return lc instanceof LanguageConstraints.Terminal
+        && ((LanguageConstraints.Terminal) lc).term.equals(term);
+  }
+
+  /*************************************************************************/
+  /* Eq(b): replace by the LC of b, or at least shorten the chain of Eq */
+  /*************************************************************************/
+  static class EqElision implements Pass {
+    @Override
+    public String name() {
+      return "eq-elision";
+    }
+
+    @Override
+    public boolean run(LanguageConstraints.Box lcb) {
+      if (!(lcb.getLC() instanceof LanguageConstraints.Eq))
+        return false;
+      return install(lcb, ((LanguageConstraints.Eq) lcb.getLC()).lcb);
+    }
+  }
+
+  /*************************************************************************/
+  /* Inline nested unions, drop duplicates, and replace singleton unions */
+  /*************************************************************************/
+  static class UnionFlattening implements Pass {
+    @Override
+    public String name() {
+      return "union-flattening";
+    }
+
+    @Override
+    public boolean run(LanguageConstraints.Box lcb) {
+      if (!(lcb.getLC() instanceof LanguageConstraints.Union))
+        return false;
+      LanguageConstraints.Union lcu = (LanguageConstraints.Union) lcb.getLC();
+      List<LanguageConstraints.Box> flat = new ArrayList<LanguageConstraints.Box>();
+      Set<Object> seen = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+      Set<String> terms = new HashSet<String>();
+      seen.add(lcu);
+      flatten(lcu, flat, seen, terms);
+
+      boolean changed = !flat.equals(lcu.elements);
+      if (changed) {
+        checkUnpinned();
+        lcu.elements.clear();
+        lcu.elements.addAll(flat);
+        lcu.rewritten();
+      }
+      if (flat.size() == 1 && !lcb.open)
+        changed |= install(lcb, flat.get(0));
+      return changed;
+    }
+
+    private void flatten(LanguageConstraints.Union lcu, List<LanguageConstraints.Box> flat,
+        Set<Object> seen, Set<String> terms) {
+      for (LanguageConstraints.Box elm : lcu.elements) {
+        LanguageConstraints.Box target = resolve(elm);
+        LanguageConstraints lc = isTransparent(target) ? target.getLC() : null;
+        if (lc instanceof LanguageConstraints.Union) {
+          if (seen.add(lc))
+            flatten((LanguageConstraints.Union) lc, flat, seen, terms);
+          else if (lc == lcu && seen.add(target))
+            flat.add(target); // self reference: keep it, the solvers give it a meaning
+          continue;
+        }
+        if (!seen.add(target))
+          continue;
+        if (lc != null && !seen.add(lc))
+          continue;
+        if (lc instanceof LanguageConstraints.Terminal
+            && !terms.add(((LanguageConstraints.Terminal) lc).term))
+          continue;
+        flat.add(target);
+      }
+    }
+  }
+
+  /*************************************************************************/
+  /* x = base | cat(x, s) | cat(p, x) => cat(star(p), cat(base, star(s))) */
+  /*************************************************************************/
+  static class LoopSummarization implements Pass {
+    @Override
+    public String name() {
+      return "loop-summarization";
+    }
+
+    @Override
+    public boolean run(LanguageConstraints.Box lcb) {
+      if (!(lcb.getLC() instanceof LanguageConstraints.Union))
+        return false;
+      LanguageConstraints.Union lcu = (LanguageConstraints.Union) lcb.getLC();
+      SCCIndex idx = sccIndex();
+      if (!idx.inCycle(lcu))
+        return false;
+      List<LanguageConstraints> loop = idx.component(lcu);
+
+      List<LanguageConstraints.Box> bases = new ArrayList<LanguageConstraints.Box>();
+      List<LanguageConstraints.Box> suffixes = new ArrayList<LanguageConstraints.Box>();
+      List<LanguageConstraints.Box> prefixes = new ArrayList<LanguageConstraints.Box>();
+      for (LanguageConstraints.Box elm : lcu.elements) {
+        LanguageConstraints lc = contentOf(elm);
+        if (lc == lcu)
+          continue; // x = x | ... adds nothing
+        if (!inLoop(elm, loop, idx)) {
+          bases.add(elm);
+          continue;
+        }
+        if (!(lc instanceof LanguageConstraints.Concatenate))
+          return false;
+        LanguageConstraints.Concatenate lcc = (LanguageConstraints.Concatenate) lc;
+        if (contentOf(lcc.left) == lcu && !inLoop(lcc.right, loop, idx))
+          suffixes.add(lcc.right);
+        else if (contentOf(lcc.right) == lcu && !inLoop(lcc.left, loop, idx))
+          prefixes.add(lcc.left);
+        else
+          return false; // not a simple loop
+      }
+      if (bases.isEmpty() || suffixes.isEmpty() && prefixes.isEmpty())
+        return false;
+
+      LanguageConstraints.Box res = LanguageConstraints.Box.mergeListLCB(bases);
+      if (!suffixes.isEmpty())
+        res = LCFactory.concatenate(res,
+            LCFactory.star(LanguageConstraints.Box.mergeListLCB(suffixes)));
+      if (!prefixes.isEmpty())
+        res = LCFactory.concatenate(
+            LCFactory.star(LanguageConstraints.Box.mergeListLCB(prefixes)), res);
+      // in place: every box that shares the union sees the summary
+      checkUnpinned();
+      lcu.elements.clear();
+      lcu.elements.add(res);
+      lcu.rewritten();
+      if (!lcb.open)
+        install(lcb, res);
+      return true;
+    }
+
+    private static boolean inLoop(LanguageConstraints.Box lcb, List<LanguageConstraints> loop,
+        SCCIndex idx) {
+      LanguageConstraints lc = (lcb == null) ? null : lcb.getLC();
+      return lc != null && idx.component(lc) == loop;
+    }
+  }
+
+  /*************************************************************************/
+  /* Pack the constants of a union into one TerminalSet */
+  /*************************************************************************/
+  static class TerminalSetPacking implements Pass {
+    /* Smaller unions are left alone */
+    static int min_terms = 4;
+
+    @Override
+    public String name() {
+      return "terminal-set-packing";
+    }
+
+    @Override
+    public boolean run(LanguageConstraints.Box lcb) {
+      if (!(lcb.getLC() instanceof LanguageConstraints.Union))
+        return false;
+      LanguageConstraints.Union lcu = (LanguageConstraints.Union) lcb.getLC();
+      List<LanguageConstraints.Box> rest = new ArrayList<LanguageConstraints.Box>();
+      String[] terms = new String[0];
+      int packed = 0;
+      for (LanguageConstraints.Box elm : lcu.elements) {
+        String[] elmTerms = termsOf(contentOf(elm));
+        if (elmTerms == null)
+          rest.add(elm);
+        else {
+          terms = LanguageConstraints.TerminalSet.merge(terms, elmTerms);
+          packed++;
+        }
+      }
+      if (packed < 2 || terms.length < min_terms)
+        return false;
+      LanguageConstraints.TerminalSet ts = LCFactory.terminalSet(terms);
+      if (rest.isEmpty() && !lcb.open) {
+        lcb.setLC(ts);
+        return true;
+      }
+      // keep the union, it may be extended later on if lcb is open
+      rest.add(new LanguageConstraints.Box(ts));
+      checkUnpinned();
+      lcu.elements.clear();
+      lcu.elements.addAll(rest);
+      lcu.rewritten();
+      return true;
+    }
+  }
+
+  /*************************************************************************/
+  /* cat(term(a), term(b)) => term(ab), and cat(term(), x) => x */
+  /* Same for terminal sets, as long as the product stays small */
+  /*************************************************************************/
+  static class ConstantFolding implements Pass {
+    static int max_product = 1024;
+
+    @Override
+    public String name() {
+      return "constant-folding";
+    }
+
+    @Override
+    public boolean run(LanguageConstraints.Box lcb) {
+      if (lcb.getLC() instanceof LanguageConstraints.StringOp)
+        return foldStringOp(lcb, (LanguageConstraints.StringOp) lcb.getLC());
+      if (!(lcb.getLC() instanceof LanguageConstraints.Concatenate))
+        return false;
+      LanguageConstraints.Concatenate lcc = (LanguageConstraints.Concatenate) lcb.getLC();
+      LanguageConstraints l = contentOf(lcc.left);
+      LanguageConstraints r = contentOf(lcc.right);
+      if (l instanceof LanguageConstraints.Terminal && r instanceof LanguageConstraints.Terminal) {
+        lcb.setLC(LCFactory.terminal(((LanguageConstraints.Terminal) l).term
+            + ((LanguageConstraints.Terminal) r).term));
+        return true;
+      }
+      String[] lterms = termsOf(l), rterms = termsOf(r);
+      if (lterms != null && rterms != null && (long) lterms.length * rterms.length <= max_product) {
+        lcb.setLC(LCFactory.terminalSet(LanguageConstraints.TerminalSet.product(lterms, rterms)));
+        return true;
+      }
+      if (isTerminal(l, ""))
+        return install(lcb, lcc.right);
+      if (isTerminal(r, ""))
+        return install(lcb, lcc.left);
+      return false;
+    }
+
+    /* Evaluate the operation when all its operands are constants */
+    private boolean foldStringOp(LanguageConstraints.Box lcb, LanguageConstraints.StringOp lcs) {
+      List<List<String>> values = new ArrayList<List<String>>(lcs.operands.length);
+      long combinations = 1;
+      for (LanguageConstraints.Box operand : lcs.operands) {
+        String[] terms = termsOf(contentOf(operand));
+        if (terms == null)
+          return false;
+        values.add(Arrays.asList(terms));
+        combinations *= terms.length;
+      }
+      if (combinations > max_product)
+        return false;
+      Set<String> res = new TreeSet<String>();
+      lcs.evalAll(values, res);
+      if (res.isEmpty() || res.contains("(.*)"))
+        return false; // keep the node rather than turn (.*) into a terminal
+      lcb.setLC((res.size() == 1) ? LCFactory.terminal(res.iterator().next()) : LCFactory
+          .terminalSet(res));
+      return true;
+    }
+  }
+
+  /*************************************************************************/
+  /* cat(cat(a, b), c) => cat(a, b, c), up to max_parts parts, and cat(term(a), term(b)) => term(ab) */
+  /*************************************************************************/
+  static class ConcatenateFlattening implements Pass {
+    /* Longer chains become a tree of ConcatenateN with up to max_parts parts each */
+    static int max_parts = 64;
+
+    @Override
+    public String name() {
+      return "concatenate-flattening";
+    }
+
+    @Override
+    public boolean run(LanguageConstraints.Box lcb) {
+      LanguageConstraints lc = lcb.getLC();
+      LanguageConstraints.Box[] parts = partsOf(lc);
+      // loops are left to LoopSummarization
+      if (parts == null || sccIndex().inCycle(lc))
+        return false;
+      List<LanguageConstraints.Box> flat = new ArrayList<LanguageConstraints.Box>();
+      boolean changed = false;
+      for (LanguageConstraints.Box part : parts) {
+        LanguageConstraints.Box[] inner = partsOf(contentOf(part));
+        if (inner != null && flat.size() + inner.length <= max_parts) {
+          for (LanguageConstraints.Box innerPart : inner)
+            add(flat, innerPart);
+          changed = true;
+        } else
+          changed |= !add(flat, part);
+      }
+      if (!changed)
+        return false;
+      if (flat.isEmpty())
+        lcb.setLC(LCFactory.terminal(""));
+      else if (flat.size() == 1)
+        install(lcb, flat.get(0));
+      else if (flat.size() == 2)
+        lcb.setLC(new LanguageConstraints.Concatenate(flat.get(0), flat.get(1)));
+      else
+        lcb.setLC(new LanguageConstraints.ConcatenateN(flat.toArray(new LanguageConstraints.Box[flat
+            .size()])));
+      return true;
+    }
+
+    private static LanguageConstraints.Box[] partsOf(LanguageConstraints lc) {
+      if (lc instanceof LanguageConstraints.Concatenate) {
+        LanguageConstraints.Concatenate lcc = (LanguageConstraints.Concatenate) lc;
+        return new LanguageConstraints.Box[] { lcc.left, lcc.right };
+      }
+      if (lc instanceof LanguageConstraints.ConcatenateN)
+        return ((LanguageConstraints.ConcatenateN) lc).parts;
+      return null;
+    }
+
+    /* Append part to flat, merging constants; returns false if part was merged or dropped */
+    private static boolean add(List<LanguageConstraints.Box> flat, LanguageConstraints.Box part) {
+      LanguageConstraints lc = contentOf(part);
+      if (isTerminal(lc, ""))
+        return false;
+      if (lc instanceof LanguageConstraints.Terminal && !flat.isEmpty()) {
+        LanguageConstraints.Box last = flat.get(flat.size() - 1);
+        LanguageConstraints llc = contentOf(last);
+        if (llc instanceof LanguageConstraints.Terminal) {
+          flat.set(flat.size() - 1, LCFactory.terminalBox(((LanguageConstraints.Terminal) llc).term
+              + ((LanguageConstraints.Terminal) lc).term));
+          return false;
+        }
+      }
+      flat.add(part);
+      return true;
+    }
+  }
+
+  /*************************************************************************/
+  /* cat((.*),(.*)) => (.*), and a union of (.*) only => (.*) */
+  /*************************************************************************/
+  static class BottomAbsorption implements Pass {
+    @Override
+    public String name() {
+      return "bottom-absorption";
+    }
+
+    @Override
+    public boolean run(LanguageConstraints.Box lcb) {
+      LanguageConstraints lc = lcb.getLC();
+      if (lc instanceof LanguageConstraints.Concatenate) {
+        LanguageConstraints.Concatenate lcc = (LanguageConstraints.Concatenate) lc;
+        if (contentOf(lcc.left) instanceof LanguageConstraints.Bottom
+            && contentOf(lcc.right) instanceof LanguageConstraints.Bottom) {
+          lcb.setLC(LanguageConstraints.Bottom.v());
+          return true;
+        }
+      } else if (lc instanceof LanguageConstraints.Union && !lcb.open) {
+        List<LanguageConstraints.Box> elements = ((LanguageConstraints.Union) lc).elements;
+        if (elements.isEmpty())
+          return false;
+        for (LanguageConstraints.Box elm : elements)
+          if (!(contentOf(elm) instanceof LanguageConstraints.Bottom))
+            return false;
+        lcb.setLC(LanguageConstraints.Bottom.v());
+        return true;
+      }
+      return false;
+    }
+  }
+}
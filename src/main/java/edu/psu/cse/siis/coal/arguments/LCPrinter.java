@@ -0,0 +1,353 @@
+/*
+ * Copyright (C) 2015 The University of Wisconsin and the Pennsylvania State University
+ *
+ * Author: Daniel Luchaup
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.psu.cse.siis.coal.arguments;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Single pass printer for constraints, writing to an Appendable with an explicit stack.
+ *
+ * Union elements are printed in the order of their fingerprints (see LCFingerprint), which is
+ * cached per union until the graph changes. Output deeper than max_depth is elided as "...", and
+ * printing stops after max_size characters. Recursion is shown as {...}, as before.
+ */
+class LCPrinter {
+  static boolean show_uid = false;
+
+  /* Limits used by toString() */
+  static int default_max_depth = 256;
+  static int default_max_size = 1 << 16;
+
+  private static final String ELIDED = "...";
+
+  final int max_depth;
+  final int max_size;
+  /* The nodes on the current path: marked, or in seen when the caller gives a set */
+  private final Set<LanguageConstraints> seen;
+  private final LCMarks marks;
+  private final int epoch;
+  private Appendable out;
+  private int written;
+  private boolean truncated;
+  boolean recursive = false;
+
+  LCPrinter(int max_depth0, int max_size0) {
+    this(max_depth0, max_size0, null);
+  }
+
+  LCPrinter(int max_depth0, int max_size0, Set<LanguageConstraints> seen0) {
+    max_depth = max_depth0;
+    max_size = max_size0;
+    seen = seen0;
+    marks = (seen0 == null) ? LCMarks.get() : null;
+    epoch = (seen0 == null) ? marks.newEpoch() : 0;
+  }
+
+  static String toString(LanguageConstraints lc) {
+    StringBuilder sb = new StringBuilder();
+    new LCPrinter(default_max_depth, default_max_size).print(lc, sb);
+    return sb.toString();
+  }
+
+  static String toString(LanguageConstraints lc, Set<LanguageConstraints> seen) {
+    StringBuilder sb = new StringBuilder();
+    new LCPrinter(default_max_depth, default_max_size, seen).print(lc, sb);
+    return sb.toString();
+  }
+
+  static String toString(LanguageConstraints.Box lcb, int max_depth, int max_size) {
+    StringBuilder sb = new StringBuilder();
+    new LCPrinter(max_depth, max_size).print(lcb, sb);
+    return sb.toString();
+  }
+
+  /* StringBuilder does not throw */
+  void print(LanguageConstraints lc, StringBuilder sb) {
+    try {
+      print(lc, (Appendable) sb);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  void print(LanguageConstraints.Box lcb, StringBuilder sb) {
+    try {
+      print(lcb, (Appendable) sb);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  // ///////////////////////////////////////////////
+  /*
+   * What is left to do: a literal, a box, a node, or leaving a node of the current path (and the
+   * mark to restore)
+   */
+  private static final class Item {
+    final Object what;
+    final int depth;
+    final boolean exit;
+    final int prev;
+
+    Item(Object what0, int depth0, boolean exit0, int prev0) {
+      what = what0;
+      depth = depth0;
+      exit = exit0;
+      prev = prev0;
+    }
+  }
+
+  private List<Item> stack;
+
+  void print(LanguageConstraints.Box lcb, Appendable out0) throws IOException {
+    if (lcb == null) {
+      out0.append("null");
+      return;
+    }
+    run(new Item(lcb, 0, false, 0), out0);
+  }
+
+  void print(LanguageConstraints lc, Appendable out0) throws IOException {
+    run(new Item(lc, 0, false, 0), out0);
+  }
+
+  private void run(Item first, Appendable out0) throws IOException {
+    out = out0;
+    written = 0;
+    truncated = false;
+    stack = new ArrayList<Item>();
+    stack.add(first);
+    while (!stack.isEmpty() && !truncated) {
+      Item item = stack.remove(stack.size() - 1);
+      if (item.exit)
+        leave(item);
+      else if (item.what instanceof String)
+        emit((String) item.what);
+      else if (item.what instanceof LanguageConstraints.Box)
+        box((LanguageConstraints.Box) item.what, item.depth);
+      else
+        node((LanguageConstraints) item.what, item.depth);
+    }
+    // leave the path as we found it
+    for (int i = stack.size() - 1; i >= 0; --i)
+      if (stack.get(i).exit)
+        leave(stack.get(i));
+    stack = null;
+  }
+
+  private void emit(String str) throws IOException {
+    if (truncated)
+      return;
+    if (written + str.length() > max_size) {
+      out.append(str, 0, Math.max(0, max_size - written));
+      out.append(ELIDED);
+      truncated = true;
+      return;
+    }
+    out.append(str);
+    written += str.length();
+  }
+
+  /* Items are popped in the reverse order they are pushed */
+  private void push(Object what, int depth) {
+    stack.add(new Item((what == null) ? "null" : what, depth, false, 0));
+  }
+
+  private void leave(Item item) {
+    LanguageConstraints lc = (LanguageConstraints) item.what;
+    if (seen != null)
+      seen.remove(lc);
+    else
+      marks.unmark(lc, item.prev);
+  }
+
+  private void box(LanguageConstraints.Box lcb, int depth) throws IOException {
+    if (LanguageConstraints.Box.show_uid)
+      emit("[" + lcb.uid + "]");
+    LanguageConstraints lc = lcb.getLC();
+    if (lc == null)
+      emit("{NULL}");
+    else
+      node(lc, depth);
+  }
+
+  private String uid(LanguageConstraints lc) {
+    return show_uid ? "#" + lc.uid + ":" : "";
+  }
+
+  private void node(LanguageConstraints lc, int depth) throws IOException {
+    switch (lc.kind) {
+    case LanguageConstraints.TOP:
+      emit(uid(lc) + "<Top>");
+      return;
+    case LanguageConstraints.BOTTOM:
+      emit(uid(lc) + "(.*)");
+      return;
+    case LanguageConstraints.TERMINAL:
+      emit(uid(lc) + "term(" + ((LanguageConstraints.Terminal) lc).term + ")");
+      return;
+    case LanguageConstraints.TERMINAL_SET: {
+      String[] terms = ((LanguageConstraints.TerminalSet) lc).terms;
+      emit(uid(lc) + "terms(");
+      for (int i = 0; i < terms.length && !truncated; ++i)
+        emit((i == 0) ? terms[i] : " | " + terms[i]);
+      emit(")");
+      return;
+    }
+    case LanguageConstraints.PARAMETER: {
+      LanguageConstraints.Parameter lcp = (LanguageConstraints.Parameter) lc;
+      emit(uid(lc) + "param#" + lcp.sm + "#" + lcp.paramNum);
+      return;
+    }
+    case LanguageConstraints.PENDING:
+      emit(uid(lc) + "<PENDING??!>");
+      return;
+    default:
+      break;
+    }
+
+    // inner nodes
+    if (depth >= max_depth) {
+      emit(uid(lc) + ELIDED);
+      return;
+    }
+    // the SCC index does not follow call arguments, so calls are always tracked
+    boolean track = lc.kind == LanguageConstraints.CALL || SCCIndex.v(false).reachesCycle(lc);
+    if (track) {
+      if ((seen != null) ? seen.contains(lc) : marks.isMarked(lc, epoch)) {
+        recursive = true;
+        emit(uid(lc) + "{...}");
+        return;
+      }
+      int prev = 0;
+      if (seen != null)
+        seen.add(lc);
+      else
+        prev = marks.mark(lc, epoch);
+      stack.add(new Item(lc, depth, true, prev));
+    }
+    switch (lc.kind) {
+    case LanguageConstraints.UNION: {
+      LanguageConstraints.Box[] elements = canonicalOrder((LanguageConstraints.Union) lc);
+      emit(uid(lc) + "union(");
+      push(")", depth);
+      for (int i = elements.length - 1; i >= 0; --i) {
+        push(elements[i], depth + 1);
+        if (i > 0)
+          push(" | ", depth);
+      }
+      break;
+    }
+    case LanguageConstraints.CONCATENATE: {
+      LanguageConstraints.Concatenate lcc = (LanguageConstraints.Concatenate) lc;
+      emit(uid(lc) + "cat((");
+      push("))", depth);
+      push(lcc.right, depth + 1);
+      push(")(", depth);
+      push(lcc.left, depth + 1);
+      break;
+    }
+    case LanguageConstraints.CONCATENATE_N: {
+      LanguageConstraints.Box[] parts = ((LanguageConstraints.ConcatenateN) lc).parts;
+      emit(uid(lc) + "cat((");
+      push("))", depth);
+      for (int i = parts.length - 1; i >= 0; --i) {
+        push(parts[i], depth + 1);
+        if (i > 0)
+          push(")(", depth);
+      }
+      break;
+    }
+    case LanguageConstraints.EQ:
+      emit(uid(lc));
+      push(((LanguageConstraints.Eq) lc).lcb, depth + 1);
+      break;
+    case LanguageConstraints.STAR:
+      emit(uid(lc) + "star(");
+      push(")", depth);
+      push(((LanguageConstraints.Star) lc).lcb, depth + 1);
+      break;
+    case LanguageConstraints.STRING_OP: {
+      LanguageConstraints.StringOp lcs = (LanguageConstraints.StringOp) lc;
+      emit(uid(lc) + lcs.name() + "(");
+      StringBuilder ints = new StringBuilder();
+      for (int i : lcs.ints)
+        ints.append(",").append((i == LanguageConstraints.StringOp.UNKNOWN) ? "?" : i);
+      push(ints.append(")").toString(), depth);
+      for (int i = lcs.operands.length - 1; i >= 0; --i) {
+        if (i < lcs.operands.length - 1)
+          push(",", depth);
+        push(lcs.operands[i], depth + 1);
+      }
+      break;
+    }
+    case LanguageConstraints.CALL: {
+      LanguageConstraints.Call lcc = (LanguageConstraints.Call) lc;
+      emit(uid(lc) + "[call]" + lcc.callee().getName() + "(");
+      push(")", depth);
+      for (int i = lcc.arguments.length - 1; i >= 0; --i) {
+        if (i < lcc.arguments.length - 1)
+          push(",", depth);
+        push(lcc.arguments[i], depth + 1);
+      }
+      break;
+    }
+    default:
+      throw new RuntimeException("Unexpected constraint kind: " + lc.kind);
+    }
+  }
+
+  // ///////////////////////////////////////////////
+  private static Map<LanguageConstraints.Union, LanguageConstraints.Box[]> orders =
+      new IdentityHashMap<LanguageConstraints.Union, LanguageConstraints.Box[]>();
+  private static int ordersVersion = -1;
+
+  static LanguageConstraints.Box[] canonicalOrder(LanguageConstraints.Union lcu) {
+    LCSnapshot snap = LCSnapshot.current();
+    Map<LanguageConstraints.Union, LanguageConstraints.Box[]> orders =
+        (snap == null) ? LCPrinter.orders : snap.orders;
+    if (snap == null && ordersVersion != LanguageConstraints.g_version) {
+      orders.clear();
+      ordersVersion = LanguageConstraints.g_version;
+    }
+    LanguageConstraints.Box[] res = orders.get(lcu);
+    if (res == null) {
+      res = lcu.elements.toArray(new LanguageConstraints.Box[lcu.elements.size()]);
+      final Map<LanguageConstraints.Box, Long> fps =
+          new IdentityHashMap<LanguageConstraints.Box, Long>();
+      for (LanguageConstraints.Box elm : res)
+        fps.put(elm, LCFingerprint.of(elm));
+      Arrays.sort(res, new Comparator<LanguageConstraints.Box>() {
+        @Override
+        public int compare(LanguageConstraints.Box a, LanguageConstraints.Box b) {
+          long fa = fps.get(a), fb = fps.get(b);
+          return (fa < fb) ? -1 : ((fa == fb) ? 0 : 1);
+        }
+      });
+      orders.put(lcu, res);
+    }
+    return res;
+  }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2015 The University of Wisconsin and the Pennsylvania State University
+ *
+ * Author: Daniel Luchaup
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.psu.cse.siis.coal.arguments;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/*
+ * A consistent, read-only version of the constraint graph, so that a thread can solve while
+ * ConstraintCollector keeps adding constraints on another one.
+ *
+ * pin() records the current LanguageConstraints.g_version for the calling thread. Until release(),
+ * Box.getLC() returns on that thread what the box held at that version, and a Union shows the
+ * elements it had then. The writers (Box.setLC and Union.addLCB, i.e. Res2Constr.putInBox) take
+ * the lock below and, while snapshots are pinned, keep the older content as a chain of revisions;
+ * the revisions no pinned snapshot can see are dropped on the next write. Without pinned snapshots
+ * the reads go straight to the fields, as before.
+ *
+ * A snapshot belongs to the thread that pinned it, which may hand it to other threads (the helper
+ * thread of LCWalker, the tasks of a parallel solver): its maps are concurrent. It also holds the
+ * indexes derived from the graph at its version (SCCIndex, LCFingerprint, LCPrinter), since the
+ * global ones follow the live graph; two threads may compute the same entry, and keep the first
+ * one stored (the nodes have identity equality, so the maps compare them by identity). Boxes
+ * created after the snapshot show their first content. LCOptimizer rewrites unions in place and
+ * refuses to run while a snapshot is pinned.
+ */
+class LCSnapshot {
+  static final Object lock = new Object();
+  /* Number of pinned snapshots, read without the lock by Box.getLC() */
+  static volatile int pinned = 0;
+
+  private static final List<LCSnapshot> active = new ArrayList<LCSnapshot>();
+  private static final ThreadLocal<LCSnapshot> current = new ThreadLocal<LCSnapshot>();
+
+  final int version;
+  private boolean released = false;
+  private final ConcurrentMap<LanguageConstraints.Union, LanguageConstraints.Union> unions =
+      new ConcurrentHashMap<LanguageConstraints.Union, LanguageConstraints.Union>();
+
+  /* Derived indexes at this version */
+  final SCCIndex[] indexes = new SCCIndex[4];
+  final ConcurrentMap<LanguageConstraints, Long> fingerprints =
+      new ConcurrentHashMap<LanguageConstraints, Long>();
+  final ConcurrentMap<LanguageConstraints.Union, LanguageConstraints.Box[]> orders =
+      new ConcurrentHashMap<LanguageConstraints.Union, LanguageConstraints.Box[]>();
+
+  private LCSnapshot(int version0) {
+    version = version0;
+  }
+
+  static LCSnapshot pin() {
+    if (current.get() != null)
+      throw new IllegalStateException("This thread already pinned a snapshot");
+    LCSnapshot snap;
+    synchronized (lock) {
+      snap = new LCSnapshot(LanguageConstraints.g_version);
+      active.add(snap);
+      pinned = active.size();
+    }
+    current.set(snap);
+    return snap;
+  }
+
+  void release() {
+    if (current.get() == this)
+      current.remove();
+    synchronized (lock) {
+      if (released)
+        return;
+      released = true;
+      active.remove(this);
+      pinned = active.size();
+    }
+  }
+
+  /* The snapshot of the calling thread, or null if it reads the live graph */
+  static LCSnapshot current() {
+    return (pinned == 0) ? null : current.get();
+  }
+
+  /* The version the calling thread sees */
+  static int version() {
+    LCSnapshot snap = current();
+    return (snap == null) ? LanguageConstraints.g_version : snap.version;
+  }
+
+  /* Lets another thread read through snap, e.g. a helper thread with a larger stack */
+  static void attach(LCSnapshot snap) {
+    if (snap == null)
+      current.remove();
+    else
+      current.set(snap);
+  }
+
+  // ///////////////////////////////////////////////
+  /* What lcb holds at this version */
+  LanguageConstraints read(LanguageConstraints.Box lcb) {
+    // lc before revisions: the writers publish the revisions first
+    LanguageConstraints lc = lcb.lc;
+    Revision revisions = lcb.revisions;
+    if (revisions != null)
+      lc = revisions.at(version).lc;
+    if (lc instanceof LanguageConstraints.Union)
+      return union((LanguageConstraints.Union) lc);
+    return lc;
+  }
+
+  /* A copy of lcu with the elements it had at this version, the same one for every read */
+  private LanguageConstraints.Union union(LanguageConstraints.Union lcu) {
+    LanguageConstraints.Union res = unions.get(lcu);
+    if (res == null) {
+      res = new LanguageConstraints.Union();
+      synchronized (lock) {
+        int size =
+            (lcu.revisions == null) ? lcu.elements.size() : lcu.revisions.at(version).size;
+        res.elements.addAll(lcu.elements.subList(0, size));
+      }
+      LanguageConstraints.Union other = unions.putIfAbsent(lcu, res);
+      if (other != null)
+        res = other;
+    }
+    return res;
+  }
+
+  // ///////////////////////////////////////////////
+  /*
+   * Content of a box (lc) or size of a union, from version since on. Revisions are immutable and
+   * chained from the newest to the oldest.
+   */
+  static final class Revision {
+    final int since;
+    final LanguageConstraints lc;
+    final int size;
+    final Revision older;
+
+    Revision(int since0, LanguageConstraints lc0, int size0, Revision older0) {
+      since = since0;
+      lc = lc0;
+      size = size0;
+      older = older0;
+    }
+
+    Revision at(int version) {
+      Revision rev = this;
+      while (rev.since > version && rev.older != null)
+        rev = rev.older;
+      return rev;
+    }
+  }
+
+  /*
+   * The revisions of a box that changes from old_lc to new_lc at the next version. Called with
+   * the lock held.
+   */
+  static Revision revise(Revision revisions, LanguageConstraints old_lc, LanguageConstraints new_lc) {
+    if (pinned == 0)
+      return null;
+    Revision older = (revisions == null) ? new Revision(0, old_lc, 0, null) : prune(revisions);
+    return new Revision(LanguageConstraints.g_version + 1, new_lc, 0, older);
+  }
+
+  /* Same for a union that grows from old_size to new_size elements */
+  static Revision revise(Revision revisions, int old_size, int new_size) {
+    if (pinned == 0)
+      return null;
+    Revision older = (revisions == null) ? new Revision(0, null, old_size, null) : prune(revisions);
+    return new Revision(LanguageConstraints.g_version + 1, null, new_size, older);
+  }
+
+  /* Drop the revisions that no pinned snapshot reads; called with the lock held */
+  private static Revision prune(Revision revisions) {
+    int oldest = Integer.MAX_VALUE;
+    for (LCSnapshot snap : active)
+      oldest = Math.min(oldest, snap.version);
+    List<Revision> kept = new ArrayList<Revision>();
+    for (Revision rev = revisions; rev != null; rev = rev.older) {
+      kept.add(rev);
+      if (rev.since <= oldest)
+        break;
+    }
+    if (kept.get(kept.size() - 1).older == null)
+      return revisions; // nothing to drop
+    Revision res = null;
+    for (int i = kept.size() - 1; i >= 0; --i) {
+      Revision rev = kept.get(i);
+      res = new Revision(rev.since, rev.lc, rev.size, res);
+    }
+    return res;
+  }
+}
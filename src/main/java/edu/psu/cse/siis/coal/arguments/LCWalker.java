@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2015 The University of Wisconsin and the Pennsylvania State University
+ *
+ * Author: Daniel Luchaup
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.psu.cse.siis.coal.arguments;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/*
+ * Traversal of the constraint graph with an explicit stack, dispatching on LanguageConstraints.kind.
+ *
+ * walk() is for traversals that only need to see the nodes (checks, indexes, rewriting). The
+ * switchLC visitors compute their results bottom-up on the Java stack; apply() runs them as they
+ * are, but moves them to a thread with a large stack when the graph is too deep for the current one.
+ */
+class LCWalker {
+  static interface Listener {
+    /* Called before the children of lc; returns false to skip them, and the matching exit(). */
+    boolean enter(LanguageConstraints lc);
+
+    void exit(LanguageConstraints lc);
+  }
+
+  /* Graphs deeper than this are solved on a separate thread */
+  static int max_inline_depth = 512;
+  /* Stack reserved per level of the graph when solving on a separate thread */
+  static long stack_bytes_per_level = 2048;
+  static long min_stack_bytes = 64L << 20;
+
+  final boolean follow_calls;
+
+  LCWalker(boolean follow_calls0) {
+    follow_calls = follow_calls0;
+  }
+
+  /* Depth-first walk from root; a node is entered once per path that reaches it */
+  void walk(LanguageConstraints root, Listener listener) {
+    if (root == null || !listener.enter(root))
+      return;
+    List<LanguageConstraints> nodes = new ArrayList<LanguageConstraints>();
+    List<Iterator<LanguageConstraints.Box>> its = new ArrayList<Iterator<LanguageConstraints.Box>>();
+    nodes.add(root);
+    its.add(children(root, follow_calls).iterator());
+    while (!nodes.isEmpty()) {
+      int top = nodes.size() - 1;
+      Iterator<LanguageConstraints.Box> it = its.get(top);
+      if (!it.hasNext()) {
+        listener.exit(nodes.remove(top));
+        its.remove(top);
+        continue;
+      }
+      LanguageConstraints.Box lcb = it.next();
+      LanguageConstraints lc = (lcb == null) ? null : lcb.getLC();
+      if (lc != null && listener.enter(lc)) {
+        nodes.add(lc);
+        its.add(children(lc, follow_calls).iterator());
+      }
+    }
+  }
+
+  static List<LanguageConstraints.Box> children(LanguageConstraints lc, boolean calls) {
+    switch (lc.kind) {
+    case LanguageConstraints.UNION:
+      return ((LanguageConstraints.Union) lc).elements;
+    case LanguageConstraints.CONCATENATE: {
+      LanguageConstraints.Concatenate lcc = (LanguageConstraints.Concatenate) lc;
+      List<LanguageConstraints.Box> res = new ArrayList<LanguageConstraints.Box>(2);
+      res.add(lcc.left);
+      res.add(lcc.right);
+      return res;
+    }
+    case LanguageConstraints.CONCATENATE_N:
+      return Arrays.asList(((LanguageConstraints.ConcatenateN) lc).parts);
+    case LanguageConstraints.EQ:
+      return Collections.singletonList(((LanguageConstraints.Eq) lc).lcb);
+    case LanguageConstraints.STAR:
+      return Collections.singletonList(((LanguageConstraints.Star) lc).lcb);
+    case LanguageConstraints.STRING_OP:
+      return Arrays.asList(((LanguageConstraints.StringOp) lc).operands);
+    case LanguageConstraints.CALL: {
+      if (!calls)
+        break;
+      List<LanguageConstraints.Box> res = new ArrayList<LanguageConstraints.Box>();
+      for (LanguageConstraints.Box arg : ((LanguageConstraints.Call) lc).arguments)
+        if (arg != null)
+          res.add(arg);
+      return res;
+    }
+    default:
+      break;
+    }
+    return Collections.emptyList();
+  }
+
+  // ///////////////////////////////////////////////
+  /*
+   * lcb.apply(slc), on a thread with a large enough stack when lcb is deep. follow_parameters must
+   * say whether slc evaluates parameters through the argument boxes (see SCCIndex), and
+   * inline_depth how many calls deep it may go.
+   */
+  static void apply(final LanguageConstraints.Box lcb, final switchLC slc,
+      boolean follow_parameters, int inline_depth) {
+    if (lcb == null)
+      return;
+    run(new Runnable() {
+      @Override
+      public void run() {
+        lcb.apply(slc);
+      }
+    }, (long) SCCIndex.v(follow_parameters).depth(lcb.getLC()) * (inline_depth + 1));
+  }
+
+  static void apply(final LanguageConstraints lc, final switchLC slc, boolean follow_parameters,
+      int inline_depth) {
+    run(new Runnable() {
+      @Override
+      public void run() {
+        LanguageConstraints.dispatch(lc, slc);
+      }
+    }, (long) SCCIndex.v(follow_parameters).depth(lc) * (inline_depth + 1));
+  }
+
+  private static void run(final Runnable visit, long depth) {
+    if (depth <= max_inline_depth) {
+      visit.run();
+      return;
+    }
+    final Throwable[] failure = new Throwable[1];
+    final LCSnapshot snap = LCSnapshot.current();
+    Runnable task = new Runnable() {
+      @Override
+      public void run() {
+        LCSnapshot.attach(snap);
+        try {
+          visit.run();
+        } catch (Throwable t) {
+          failure[0] = t;
+        } finally {
+          LCSnapshot.attach(null);
+        }
+      }
+    };
+    long stackSize = Math.max(min_stack_bytes, depth * stack_bytes_per_level);
+    DBG.print("LCWalker: depth %d, solving with a %d bytes stack", depth, stackSize);
+    Thread worker = new Thread(null, task, "LCWalker", stackSize);
+    worker.start();
+    boolean interrupted = false;
+    while (true) {
+      try {
+        worker.join();
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted)
+      Thread.currentThread().interrupt();
+    if (failure[0] instanceof RuntimeException)
+      throw (RuntimeException) failure[0];
+    if (failure[0] instanceof Error)
+      throw (Error) failure[0];
+    if (failure[0] != null)
+      throw new RuntimeException(failure[0]);
+  }
+}
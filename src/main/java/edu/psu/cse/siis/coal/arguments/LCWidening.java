@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2015 The University of Wisconsin and the Pennsylvania State University
+ *
+ * Author: Daniel Luchaup
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.psu.cse.siis.coal.arguments;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/*
+ * Bound on the number of strings the set solvers keep per node. Beyond max_results, a set is
+ * widened to at most max_patterns patterns prefix(.*)suffix: the sorted strings are split in
+ * groups, and each group is replaced by the longest prefix and suffix its strings share. Every
+ * string of the set, including the (.*) in it, is in the language of one of the patterns, and the
+ * patterns subsumed by another one are dropped.
+ */
+final class LCWidening {
+  /* Strings per node before widening */
+  static int max_results = 1024;
+  /* Patterns after widening */
+  static int max_patterns = 16;
+
+  private static final String ANY = "(.*)";
+
+  private LCWidening() {
+  }
+
+  static boolean exceeds(long size) {
+    return size > max_results;
+  }
+
+  /* Widens left and right when their product would have too many strings */
+  static void boundProduct(Collection<? super String> left, Collection<? super String> right) {
+    if (!exceeds((long) left.size() * right.size()))
+      return;
+    replace(left);
+    replace(right);
+  }
+
+  /* Widens values in place when there are too many of them */
+  static void bound(Collection<? super String> values) {
+    if (exceeds(values.size()))
+      replace(values);
+  }
+
+  private static void replace(Collection<? super String> values) {
+    if (values.size() <= max_patterns)
+      return;
+    Set<String> res = widen(values, max_patterns);
+    values.clear();
+    values.addAll(res);
+  }
+
+  static Set<String> widen(Collection<?> values, int patterns) {
+    List<String> strs = new ArrayList<String>(values.size());
+    for (Object value : values) {
+      if (!(value instanceof String))
+        return Collections.singleton(ANY);
+      strs.add((String) value);
+    }
+    Collections.sort(strs);
+    int n = strs.size();
+    int groups = Math.min(Math.max(patterns, 1), n);
+    Set<String> res = new HashSet<String>();
+    for (int g = 0; g < groups; ++g)
+      res.add(pattern(strs.subList(g * n / groups, (g + 1) * n / groups)));
+    PatternSet.prune(res);
+    return res;
+  }
+
+  /* The longest prefix(.*)suffix matching all of strs, or the string itself */
+  static String pattern(List<String> strs) {
+    if (strs.size() == 1)
+      return strs.get(0);
+    String first = strs.get(0);
+    int prefix = first.length();
+    for (String str : strs) {
+      prefix = Math.min(prefix, commonPrefix(first, str));
+      int any = str.indexOf(ANY);
+      if (any >= 0)
+        prefix = Math.min(prefix, any);
+    }
+    int suffix = first.length();
+    for (String str : strs) {
+      suffix = Math.min(suffix, commonSuffix(first, str));
+      int any = str.lastIndexOf(ANY);
+      // the suffix must neither overlap the prefix nor cut a (.*)
+      int room = (any >= 0) ? str.length() - any - ANY.length() : str.length() - prefix;
+      suffix = Math.min(suffix, room);
+    }
+    return first.substring(0, prefix) + ANY + first.substring(first.length() - suffix);
+  }
+
+  private static int commonPrefix(String a, String b) {
+    int n = Math.min(a.length(), b.length());
+    int i = 0;
+    while (i < n && a.charAt(i) == b.charAt(i))
+      ++i;
+    return i;
+  }
+
+  private static int commonSuffix(String a, String b) {
+    int n = Math.min(a.length(), b.length());
+    int i = 0;
+    while (i < n && a.charAt(a.length() - 1 - i) == b.charAt(b.length() - 1 - i))
+      ++i;
+    return i;
+  }
+}
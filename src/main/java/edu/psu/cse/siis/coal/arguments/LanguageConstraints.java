@@ -18,39 +18,113 @@
 package edu.psu.cse.siis.coal.arguments;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import soot.SootMethod;
+import soot.Unit;
 import soot.jimple.Stmt;
 import edu.psu.cse.siis.coal.arguments.LanguageConstraints.Call;
 
 public abstract class LanguageConstraints {
-  static int g_uid = 0;
+  /* Atomic, since solving threads may create nodes too; see LCMarks */
+  private static final AtomicInteger g_uid = new AtomicInteger();
   public final int uid;
-
-  public LanguageConstraints() {
-    uid = ++g_uid;
+  /*
+   * Bumped on every change to the graph, so that indexes over it know when to recompute. Also the
+   * version pinned by LCSnapshot.
+   */
+  static volatile int g_version = 0;
+
+  /* Node kinds, so that traversals can dispatch with a switch instead of a virtual call */
+  static final int TOP = 0;
+  static final int BOTTOM = 1;
+  static final int TERMINAL = 2;
+  static final int PARAMETER = 3;
+  static final int CALL = 4;
+  static final int UNION = 5;
+  static final int CONCATENATE = 6;
+  static final int EQ = 7;
+  static final int PENDING = 8;
+  static final int TERMINAL_SET = 9;
+  static final int STAR = 10;
+  static final int STRING_OP = 11;
+  static final int CONCATENATE_N = 12;
+
+  final int kind;
+  /* See LCFingerprint; the version is written after the fingerprint */
+  long fingerprint;
+  volatile int fingerprint_version = -1;
+
+  LanguageConstraints(int kind0) {
+    uid = g_uid.incrementAndGet();
+    kind = kind0;
   }
 
   @Override
   public String toString() {
-    ToStringVisitor tsv = new ToStringVisitor();
-    this.apply(tsv);
-    return tsv.result.toString();
+    return LCPrinter.toString(this);
   }
 
   public String toString(Set<LanguageConstraints> seen) {
-    ToStringVisitor tsv = new ToStringVisitor(seen);
-    this.apply(tsv);
-    return tsv.result.toString();
+    return LCPrinter.toString(this, seen);
   }
 
   public abstract void apply(switchLC slc);
 
+  /* Same as lc.apply(slc) */
+  static void dispatch(LanguageConstraints lc, switchLC slc) {
+    switch (lc.kind) {
+    case TOP:
+      slc.caseTop((Top) lc);
+      break;
+    case BOTTOM:
+      slc.caseBottom((Bottom) lc);
+      break;
+    case TERMINAL:
+      slc.caseTerminal((Terminal) lc);
+      break;
+    case PARAMETER:
+      slc.caseParameter((Parameter) lc);
+      break;
+    case CALL:
+      slc.caseCall((Call) lc);
+      break;
+    case UNION:
+      slc.caseUnion((Union) lc);
+      break;
+    case CONCATENATE:
+      slc.caseConcatenate((Concatenate) lc);
+      break;
+    case EQ:
+      slc.caseEq((Eq) lc);
+      break;
+    case PENDING:
+      slc.casePending((Pending) lc);
+      break;
+    case TERMINAL_SET:
+      slc.caseTerminalSet((TerminalSet) lc);
+      break;
+    case STAR:
+      slc.caseStar((Star) lc);
+      break;
+    case STRING_OP:
+      slc.caseStringOp((StringOp) lc);
+      break;
+    case CONCATENATE_N:
+      slc.caseConcatenateN((ConcatenateN) lc);
+      break;
+    default:
+      lc.apply(slc);
+    }
+  }
+
   /*************************************************************************/
   /* Top means an unknown/undefined/unconstrained ... ********************* */
   /*************************************************************************/
@@ -58,6 +132,7 @@ public abstract class LanguageConstraints {
     private static final Top top = new Top();
 
     private Top() {
+      super(TOP);
     };
 
     public static LanguageConstraints v() {
@@ -76,6 +151,10 @@ public abstract class LanguageConstraints {
   public static final class Bottom extends LanguageConstraints {
     private static final Bottom bottom = new Bottom();
 
+    private Bottom() {
+      super(BOTTOM);
+    }
+
     public static LanguageConstraints v() {
       return bottom;
     }
@@ -93,6 +172,7 @@ public abstract class LanguageConstraints {
     public final String term;
 
     public Terminal(String t) {
+      super(TERMINAL);
       term = t;
     }
 
@@ -102,6 +182,62 @@ public abstract class LanguageConstraints {
     }
   }
 
+  /*************************************************************************/
+  /* A set of terminals, i.e. the union of their languages */
+  /*************************************************************************/
+  public static final class TerminalSet extends LanguageConstraints {
+    /* Sorted, without duplicates */
+    final String[] terms;
+
+    /* Use LCFactory.terminalSet() */
+    TerminalSet(String[] sorted_terms) {
+      super(TERMINAL_SET);
+      terms = sorted_terms;
+    }
+
+    public int size() {
+      return terms.length;
+    }
+
+    public boolean contains(String term) {
+      return Arrays.binarySearch(terms, term) >= 0;
+    }
+
+    List<String> getTerms() {
+      return Collections.unmodifiableList(Arrays.asList(terms));
+    }
+
+    /* Sorted union of two sorted arrays */
+    static String[] merge(String[] a, String[] b) {
+      String[] res = new String[a.length + b.length];
+      int i = 0, j = 0, n = 0;
+      while (i < a.length || j < b.length) {
+        int cmp = (i == a.length) ? 1 : ((j == b.length) ? -1 : a[i].compareTo(b[j]));
+        if (cmp <= 0) {
+          res[n++] = a[i++];
+          if (cmp == 0)
+            j++;
+        } else
+          res[n++] = b[j++];
+      }
+      return (n == res.length) ? res : Arrays.copyOf(res, n);
+    }
+
+    /* Sorted set of all the concatenations of a string of a with a string of b */
+    static String[] product(String[] a, String[] b) {
+      TreeSet<String> res = new TreeSet<String>();
+      for (String l : a)
+        for (String r : b)
+          res.add(l + r);
+      return res.toArray(new String[res.size()]);
+    }
+
+    @Override
+    public void apply(switchLC slc) {
+      slc.caseTerminalSet(this);
+    }
+  }
+
   /*************************************************************************/
   /* Parameter */
   /*************************************************************************/
@@ -110,6 +246,7 @@ public abstract class LanguageConstraints {
     public final int paramNum;
 
     public Parameter(SootMethod sm0, int paramNum0) {
+      super(PARAMETER);
       sm = sm0;
       paramNum = paramNum0;
     }
@@ -127,8 +264,10 @@ public abstract class LanguageConstraints {
     SootMethod sm_context;
     public Stmt stmt;
     LanguageConstraints.Box[] arguments;
+    private int site = Integer.MIN_VALUE;
 
     public Call(SootMethod sm0, Stmt stmt0, LanguageConstraints.Box[] arguments0) {
+      super(CALL);
       sm_context = sm0;
       stmt = stmt0;
       arguments = arguments0;
@@ -138,6 +277,23 @@ public abstract class LanguageConstraints {
       return stmt.getInvokeExpr().getMethod();
     }
 
+    /* The index of stmt in the body of sm_context, the same from one run to the next, or -1 */
+    int site() {
+      if (site == Integer.MIN_VALUE) {
+        int i = 0, res = -1;
+        if (sm_context != null && sm_context.hasActiveBody())
+          for (Unit unit : sm_context.getActiveBody().getUnits()) {
+            if (unit == stmt) {
+              res = i;
+              break;
+            }
+            ++i;
+          }
+        site = res;
+      }
+      return site;
+    }
+
     @Override
     public void apply(switchLC slc) {
       slc.caseCall(this);
@@ -147,13 +303,27 @@ public abstract class LanguageConstraints {
   /*************************************************************************/
   public static class Union extends LanguageConstraints {
     public List<LanguageConstraints.Box> elements;
+    /* The sizes seen by pinned snapshots, see LCSnapshot */
+    LCSnapshot.Revision revisions = null;
+    /* The version of the last change to the elements, see SCCIndex.changed */
+    int version = 0;
 
     public Union() {
+      super(UNION);
       elements = new ArrayList<LanguageConstraints.Box>();
     }
 
     void addLCB(LanguageConstraints.Box elm) {
-      elements.add(elm);
+      synchronized (LCSnapshot.lock) {
+        revisions = LCSnapshot.revise(revisions, elements.size(), elements.size() + 1);
+        elements.add(elm);
+        version = ++g_version;
+      }
+    }
+
+    /* The elements were rewritten in place, see LCOptimizer */
+    void rewritten() {
+      version = ++g_version;
     }
 
     List<LanguageConstraints.Box> getElementBoxes() {
@@ -171,6 +341,7 @@ public abstract class LanguageConstraints {
     public LanguageConstraints.Box left, right;
 
     public Concatenate(LanguageConstraints.Box l, LanguageConstraints.Box r) {
+      super(CONCATENATE);
       left = l;
       right = r;
     }
@@ -181,11 +352,29 @@ public abstract class LanguageConstraints {
     }
   }
 
+  /*************************************************************************/
+  /* The concatenation of parts, left to right, for chains of appends; see LCOptimizer */
+  /*************************************************************************/
+  public static class ConcatenateN extends LanguageConstraints {
+    public final LanguageConstraints.Box[] parts;
+
+    ConcatenateN(LanguageConstraints.Box[] parts0) {
+      super(CONCATENATE_N);
+      parts = parts0;
+    }
+
+    @Override
+    public void apply(switchLC slc) {
+      slc.caseConcatenateN(this);
+    }
+  }
+
   /*************************************************************************/
   public static class Eq extends LanguageConstraints {
     public LanguageConstraints.Box lcb;
 
     Eq(LanguageConstraints.Box lcb0) {
+      super(EQ);
       lcb = lcb0;
     }
 
@@ -203,6 +392,179 @@ public abstract class LanguageConstraints {
     }
   }
 
+  /*************************************************************************/
+  /* Kleene star: any number of repetitions of lcb, including none */
+  /*************************************************************************/
+  public static class Star extends LanguageConstraints {
+    public final LanguageConstraints.Box lcb;
+
+    Star(LanguageConstraints.Box lcb0) {
+      super(STAR);
+      lcb = lcb0;
+    }
+
+    @Override
+    public void apply(switchLC slc) {
+      slc.caseStar(this);
+    }
+  }
+
+  /*************************************************************************/
+  /*
+   * A java.lang.String operation applied to the strings of operands[0], with operands[1..] as
+   * string arguments and ints as the int/char arguments, when they are constants. It is only
+   * evaluated by the solvers, on each combination of the strings of the operands.
+   */
+  /*************************************************************************/
+  public static class StringOp extends LanguageConstraints {
+    static final int SUBSTRING = 0; // ints: begin [, end]
+    static final int REPLACE_CHAR = 1; // ints: old char, new char
+    static final int REPLACE = 2; // operands: receiver, target, replacement
+    static final int TO_LOWER_CASE = 3;
+    static final int TO_UPPER_CASE = 4;
+    static final int TRIM = 5;
+    static final String[] names = { "substring", "replace", "replace", "toLowerCase",
+        "toUpperCase", "trim" };
+
+    /* An int argument that is not a constant */
+    static final int UNKNOWN = Integer.MIN_VALUE;
+    /* More combinations of operand strings than this evaluate to (.*) */
+    static int max_combinations = 1024;
+
+    private static final String ANY = "(.*)";
+
+    final int op;
+    final LanguageConstraints.Box[] operands;
+    final int[] ints;
+
+    /* Use LCFactory.stringOp() */
+    StringOp(int op0, LanguageConstraints.Box[] operands0, int[] ints0) {
+      super(STRING_OP);
+      op = op0;
+      operands = operands0;
+      ints = ints0;
+    }
+
+    String name() {
+      return names[op];
+    }
+
+    /* The result of the operation on one string per operand; (.*) when it cannot be known */
+    String eval(String[] strs) {
+      String str = strs[0];
+      boolean any = str.contains(ANY);
+      switch (op) {
+      case SUBSTRING: {
+        if (any)
+          return ANY;
+        int begin = ints[0];
+        int end = (ints.length > 1) ? ints[1] : str.length();
+        if (begin == UNKNOWN || end == UNKNOWN || begin < 0 || end > str.length() || begin > end)
+          return ANY;
+        return str.substring(begin, end);
+      }
+      case REPLACE_CHAR: {
+        if (ints[0] == UNKNOWN || ints[1] == UNKNOWN)
+          return ANY;
+        char oldChar = (char) ints[0];
+        if (any && ANY.indexOf(oldChar) >= 0)
+          return ANY;
+        // the unknown parts stay unknown after the replacement
+        return str.replace(oldChar, (char) ints[1]);
+      }
+      case REPLACE:
+        if (any || strs[1].contains(ANY) || strs[2].contains(ANY))
+          return ANY;
+        return str.replace(strs[1], strs[2]);
+      case TO_LOWER_CASE:
+        // (.*) has no case
+        if (!isAscii(str))
+          return ANY;
+        return str.toLowerCase(Locale.ENGLISH);
+      case TO_UPPER_CASE:
+        if (!isAscii(str))
+          return ANY;
+        return str.toUpperCase(Locale.ENGLISH);
+      case TRIM: {
+        // the whitespace next to a leading or trailing (.*) may or may not be trimmed: it joins it
+        int begin = 0, end = str.length();
+        boolean any_begin = false, any_end = false;
+        while (begin < end)
+          if (str.startsWith(ANY, begin)) {
+            any_begin = true;
+            begin += ANY.length();
+          } else if (str.charAt(begin) <= ' ')
+            begin++;
+          else
+            break;
+        while (end > begin)
+          if (end - ANY.length() >= begin && str.startsWith(ANY, end - ANY.length())) {
+            any_end = true;
+            end -= ANY.length();
+          } else if (str.charAt(end - 1) <= ' ')
+            end--;
+          else
+            break;
+        String res = str.substring(begin, end);
+        if (any_begin)
+          res = ANY + res;
+        if (any_end)
+          res = res + ANY;
+        return res;
+      }
+      default:
+        throw new RuntimeException("Unexpected string operation: " + op);
+      }
+    }
+
+    /*
+     * The case of an application depends on its default locale. Only ASCII strings are mapped, as in
+     * English; the Turkish locales, which map 'I' and 'i' to dotless and dotted letters, are not
+     * modeled.
+     */
+    private static boolean isAscii(String str) {
+      for (int i = 0; i < str.length(); ++i)
+        if (str.charAt(i) > 0x7f)
+          return false;
+      return true;
+    }
+
+    /*
+     * Add to result the evaluation on every combination of values, the solutions of the operands.
+     * Values that are not strings evaluate to (.*).
+     */
+    void evalAll(List<? extends Collection<?>> values, Collection<? super String> result) {
+      long combinations = 1;
+      for (Collection<?> v : values)
+        combinations *= Math.max(1, v.size());
+      if (combinations > max_combinations) {
+        result.add(ANY);
+        return;
+      }
+      evalAll(values, 0, new String[values.size()], result);
+    }
+
+    private void evalAll(List<? extends Collection<?>> values, int i, String[] strs,
+        Collection<? super String> result) {
+      if (i == strs.length) {
+        result.add(eval(strs));
+        return;
+      }
+      for (Object v : values.get(i)) {
+        if (v instanceof String) {
+          strs[i] = (String) v;
+          evalAll(values, i + 1, strs, result);
+        } else
+          result.add(ANY);
+      }
+    }
+
+    @Override
+    public void apply(switchLC slc) {
+      slc.caseStringOp(this);
+    }
+  }
+
   /*************************************************************************/
   /*
    * Pending is placeholder, to be used to stop a possibily recursive traversal
@@ -212,6 +574,10 @@ public abstract class LanguageConstraints {
   public static final class Pending extends LanguageConstraints {
     private static final Pending pending = new Pending();
 
+    private Pending() {
+      super(PENDING);
+    }
+
     public static LanguageConstraints v() {
       return pending;
     }
@@ -224,34 +590,58 @@ public abstract class LanguageConstraints {
 
   /*************************************************************************/
   /*************************************************************************/
+  /*
+   * TBD: a node and its box are two objects, and a Union adds an ArrayList. A compact store (kind,
+   * children and terminal ids in int arrays) would also need the per-node indexes to go to arrays:
+   * SCCIndex, LCFingerprint and LCSnapshot key maps by node, and LCMarks by uid. Until then a
+   * store of decoded views saves nothing once those are built over the whole graph.
+   */
   public static class Box {
-    static int g_uid = 0;
+    private static final AtomicInteger g_uid = new AtomicInteger();
     int uid;
-
-    LanguageConstraints lc;
+    /*
+     * An open box may still receive constraints after the method that created it was collected:
+     * the boxes for fields, returns and arguments. Statement boxes and temporaries are closed once
+     * their method is done, which is what lets LCOptimizer look through them.
+     */
+    boolean open = false;
+
+    volatile LanguageConstraints lc;
+    /* The contents seen by pinned snapshots, see LCSnapshot */
+    volatile LCSnapshot.Revision revisions = null;
+    /* The version of the last setLC, see SCCIndex.changed */
+    volatile int version = 0;
 
     public Box() {
-      uid = ++g_uid;
+      uid = g_uid.incrementAndGet();
       lc = null;
     }
 
     public Box(LanguageConstraints lc0) {
-      uid = ++g_uid;
+      uid = g_uid.incrementAndGet();
       lc = lc0;
     }
 
     public void setLC(LanguageConstraints lc0) {
-      lc = lc0;
+      synchronized (LCSnapshot.lock) {
+        revisions = LCSnapshot.revise(revisions, lc, lc0);
+        lc = lc0;
+        version = ++g_version;
+      }
     }
 
     public LanguageConstraints getLC() {
-      return lc;
+      if (LCSnapshot.pinned == 0)
+        return lc;
+      LCSnapshot snap = LCSnapshot.current();
+      return (snap == null) ? lc : snap.read(this);
     }
 
     static boolean show_uid = false;
 
     @Override
     public String toString() {
+      LanguageConstraints lc = getLC();
       String lcstr = (lc == null) ? "{NULL}" : lc.toString();
       if (show_uid)
         return "[" + uid + "]" + lcstr;
@@ -260,6 +650,7 @@ public abstract class LanguageConstraints {
     }
 
     public String toString(Set<LanguageConstraints> seen) {
+      LanguageConstraints lc = getLC();
       String lcstr = (lc == null) ? "{NULL}" : lc.toString(seen);
       if (show_uid)
         return "[" + uid + "]" + lcstr;// only used for debugging
@@ -267,21 +658,16 @@ public abstract class LanguageConstraints {
     }
 
     public void apply(switchLC slc) {
+      LanguageConstraints lc = getLC();
       if (lc != null)
-        lc.apply(slc);
+        dispatch(lc, slc);
     }
 
     // ///////////////////////////////////////////////
     static LanguageConstraints.Box mergeListLCB(List<LanguageConstraints.Box> lst) {
       if (lst.size() == 1)
         return lst.get(0);
-      LanguageConstraints.Union lcu = new LanguageConstraints.Union();
-      for (Iterator<LanguageConstraints.Box> it = lst.iterator(); it.hasNext();) {
-        LanguageConstraints.Box lcb = it.next();
-        lcu.addLCB(lcb);
-      }
-      LanguageConstraints.Box res = new LanguageConstraints.Box(lcu);
-      return res;
+      return LCFactory.union(lst);
     }
   }
 
@@ -290,10 +676,12 @@ public abstract class LanguageConstraints {
     @Override
     public void apply(switchLC slc) {
       boolean old_mode = slc.setFieldMode(true);
+      LanguageConstraints lc = getLC();
       if (lc != null)
-        lc.apply(slc);
+        dispatch(lc, slc);
       else {// HACK
-        if (slc instanceof RecursiveDAGSolverVisitorLC) {
+        if (slc instanceof RecursiveDAGSolverVisitorLC
+            || slc instanceof ReturnSummaries.Summarizer) {
           Box tmpNullBox = NullConstantBox();
           tmpNullBox.apply(slc);
         }
@@ -312,141 +700,6 @@ public abstract class LanguageConstraints {
   }
 
   public static LanguageConstraints.Box NullConstantBox() {
-    return new LanguageConstraints.Box(new LanguageConstraints.Terminal("NULL-CONSTANT"));
-  }
-}
-
-class ToStringVisitor implements switchLC {
-  boolean recursive = false;
-  Set<LanguageConstraints> seen;
-  StringBuilder result;
-
-  ToStringVisitor() {
-    seen = new HashSet<LanguageConstraints>();
-    result = new StringBuilder();
-  }
-
-  ToStringVisitor(Set<LanguageConstraints> seen0) {
-    seen = seen0;
-    result = new StringBuilder();
-  }
-
-  static boolean show_uid = false;
-
-  String uid(LanguageConstraints lc) {
-    if (show_uid)
-      return "#" + lc.uid + ":";
-    else
-      return "";
-  }
-
-  @Override
-  public boolean setFieldMode(boolean mode) {
-    return false;
-  }
-
-  /***************************************************************************/
-  @Override
-  public void caseTop(LanguageConstraints.Top lc) {
-    result.append(uid(lc) + "<Top>");
-  }
-
-  @Override
-  public void caseBottom(LanguageConstraints.Bottom lc) {
-    result.append(uid(lc) + "(.*)");// More info?
-  }
-
-  @Override
-  public void caseTerminal(LanguageConstraints.Terminal lc) {
-    result.append(uid(lc) + "term(" + lc.term + ")");
-  }
-
-  @Override
-  public void caseParameter(LanguageConstraints.Parameter lc) {
-    result.append(uid(lc) + "param#" + lc.sm + "#" + lc.paramNum);
-  }
-
-  @Override
-  public void caseUnion(LanguageConstraints.Union lc) {
-    if (seen.contains(lc)) {
-      recursive = true;
-      result.append(uid(lc) + "{...}");
-      return;
-    }
-    seen.add(lc);
-    // get all elements, and sort them for deterministic results
-    ArrayList<String> list = new ArrayList<String>();
-    Iterator<LanguageConstraints.Box> it = lc.elements.iterator();
-    while (it.hasNext()) {
-      LanguageConstraints.Box lcb = it.next();
-      list.add(lcb.toString(seen));
-    }
-    Collections.sort(list);
-    result.append(uid(lc) + "union(");
-    for (Iterator<String> lit = list.iterator(); lit.hasNext();) {
-      String lstr = lit.next();
-      result.append(lstr);
-      if (lit.hasNext())
-        result.append(" | ");
-    }
-    result.append(")");
-    assert (seen.contains(lc));
-    seen.remove(lc);
-  }
-
-  @Override
-  public void caseConcatenate(LanguageConstraints.Concatenate lc) {
-    if (seen.contains(lc)) {
-      recursive = true;
-      result.append(uid(lc) + "{...}");
-      return;
-    }
-    seen.add(lc);
-    result.append(uid(lc) + "cat((" + lc.left.toString(seen) + ")(" + lc.right.toString(seen)
-        + "))");
-    assert (seen.contains(lc));
-    seen.remove(lc);
-  }
-
-  @Override
-  public void caseEq(LanguageConstraints.Eq lc) {
-    if (seen.contains(lc)) {
-      recursive = true;
-      result.append(uid(lc) + "{...}");
-      return;
-    }
-    seen.add(lc);
-    // result.append(uid(lc) + "eq(" + lc.lcb.toString(seen) + ")");
-    // result.append(uid(lc) + "[" + lc.lcb.toString(seen) + "]");
-    result.append(uid(lc) + lc.lcb.toString(seen));
-    assert (seen.contains(lc));
-    seen.remove(lc);
-  }
-
-  @Override
-  public void casePending(LanguageConstraints.Pending lc) {
-    result.append(uid(lc) + "<PENDING??!>");
-  }
-
-  @Override
-  public void caseCall(Call lc) {
-    if (seen.contains(lc)) {
-      recursive = true;
-      result.append(uid(lc) + "{...}");
-      return;
-    }
-    seen.add(lc);
-
-    result.append(uid(lc) + "[call]" + lc.callee().getName() + "(");
-    for (int i = 0; i < lc.arguments.length; ++i) {
-      String str_arg = (lc.arguments[i] == null) ? "null" : lc.arguments[i].toString(seen);
-      if (i < lc.arguments.length - 1)
-        str_arg = str_arg + ",";
-      result.append(uid(lc) + str_arg);
-    }
-    result.append(")");
-
-    assert (seen.contains(lc));
-    seen.remove(lc);
+    return LCFactory.nullConstantBox();
   }
 }
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2015 The University of Wisconsin and the Pennsylvania State University
+ *
+ * Author: Daniel Luchaup
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.psu.cse.siis.coal.arguments;
+
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/*
+ * A set of result strings without the ones another element already stands for: a string in the
+ * language of a pattern is dropped, as is a pattern subsumed by another one (see
+ * StringPattern.subsumes). The strings are kept normalized, and the literals in a hash set, so
+ * that matches() is a lookup and a scan of the patterns only.
+ */
+class PatternSet extends AbstractSet<Object> {
+  private final Set<String> literals = new HashSet<String>();
+  private final List<StringPattern> patterns = new ArrayList<StringPattern>();
+
+  PatternSet() {
+  }
+
+  PatternSet(Collection<?> values) {
+    addAll(values);
+  }
+
+  /* values without what other values already stand for, in place */
+  static void prune(Collection<? super String> values) {
+    if (values instanceof PatternSet || values.size() < 2)
+      return;
+    PatternSet res = new PatternSet(values);
+    if (res.size() == values.size() && values.containsAll(res))
+      return;
+    values.clear();
+    for (Object value : res)
+      values.add((String) value);
+  }
+
+  /* Is str, a string without wildcards, in the language of the set? */
+  boolean matches(String str) {
+    if (literals.contains(str))
+      return true;
+    for (StringPattern pattern : patterns)
+      if (pattern.matches(str))
+        return true;
+    return false;
+  }
+
+  @Override
+  public boolean add(Object value) {
+    StringPattern pattern = StringPattern.of(value);
+    if (pattern.isLiteral()) {
+      String str = pattern.segments[0];
+      return !matches(str) && literals.add(str);
+    }
+    for (StringPattern other : patterns)
+      if (other.subsumes(pattern))
+        return false;
+    for (Iterator<StringPattern> it = patterns.iterator(); it.hasNext();)
+      if (pattern.subsumes(it.next()))
+        it.remove();
+    for (Iterator<String> it = literals.iterator(); it.hasNext();)
+      if (pattern.matches(it.next()))
+        it.remove();
+    patterns.add(pattern);
+    return true;
+  }
+
+  @Override
+  public boolean contains(Object value) {
+    StringPattern pattern = StringPattern.of(value);
+    return pattern.isLiteral() ? literals.contains(pattern.segments[0]) : patterns
+        .contains(pattern);
+  }
+
+  @Override
+  public void clear() {
+    literals.clear();
+    patterns.clear();
+  }
+
+  @Override
+  public int size() {
+    return literals.size() + patterns.size();
+  }
+
+  /* The strings of the solvers; remove() is not supported */
+  @Override
+  public Iterator<Object> iterator() {
+    final Iterator<String> lit = literals.iterator();
+    final Iterator<StringPattern> pit = patterns.iterator();
+    return new Iterator<Object>() {
+      @Override
+      public boolean hasNext() {
+        return lit.hasNext() || pit.hasNext();
+      }
+
+      @Override
+      public Object next() {
+        return lit.hasNext() ? lit.next() : pit.next().toString();
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+}
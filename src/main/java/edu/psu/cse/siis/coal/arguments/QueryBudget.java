@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2015 The University of Wisconsin and the Pennsylvania State University
+ *
+ * Author: Daniel Luchaup
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.psu.cse.siis.coal.arguments;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Limits of one query of RecursiveDAGSolverVisitorLC: wall-clock time from the creation of the
+ * budget, nodes visited, and strings per node. Once a limit is reached the budget is truncated,
+ * and the solver answers (.*) for the nodes it has not solved yet, so that the result is still a
+ * sound over-approximation, flagged by isTruncated(). One budget per query; it may be shared by
+ * the tasks of a parallel solver.
+ */
+class QueryBudget {
+  static final long UNLIMITED = Long.MAX_VALUE;
+  /* Nodes between two looks at the clock */
+  private static final int clock_period = 256;
+
+  final long max_millis;
+  final long max_nodes;
+  final long max_results;
+  private final long deadline;
+  private final AtomicLong nodes = new AtomicLong();
+  private volatile boolean truncated = false;
+
+  QueryBudget(long max_millis0, long max_nodes0, long max_results0) {
+    max_millis = max_millis0;
+    max_nodes = max_nodes0;
+    max_results = max_results0;
+    deadline = (max_millis == UNLIMITED) ? UNLIMITED : System.nanoTime() + max_millis * 1000000;
+  }
+
+  /* Counts a node; false once the budget is truncated */
+  boolean spend() {
+    if (truncated)
+      return false;
+    long n = nodes.incrementAndGet();
+    if (n > max_nodes)
+      truncated = true;
+    else if (n % clock_period == 0 && deadline != UNLIMITED && System.nanoTime() - deadline > 0)
+      truncated = true;
+    return !truncated;
+  }
+
+  /* False, truncating the budget, when a node has more than max_results strings */
+  boolean fits(int results) {
+    if (results > max_results)
+      truncated = true;
+    return !truncated;
+  }
+
+  boolean isTruncated() {
+    return truncated;
+  }
+
+  long nodes() {
+    return nodes.get();
+  }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2015 The University of Wisconsin and the Pennsylvania State University
+ *
+ * Author: Daniel Luchaup
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.psu.cse.siis.coal.arguments;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import soot.Scene;
+import soot.SootMethod;
+import soot.jimple.toolkits.callgraph.Edge;
+
+/*
+ * Answers to queries that stay valid until the constraints they depend on change.
+ *
+ * Before solving, a query records what it depends on: the boxes and unions reachable from its box,
+ * with the argument boxes of parameters and the return boxes of the callees of calls. A change
+ * that makes more of the graph reachable is made to one of these, so nothing is missed. Callees are
+ * recorded as methods too, since their return box may not exist yet. Res2Constr calls changed()
+ * for every box it adds to, and only the queries that depend on that box are solved again, on
+ * their next answer().
+ *
+ * The first answer of a query is shared with the earlier queries of the same solver over a box with
+ * the same fingerprint (see LCFingerprint), while the graph stays the same; the boxes in a cycle,
+ * whose fingerprints are weaker, are always solved. The queries of a long-running session are to be
+ * untracked when no longer needed.
+ */
+class QueryTracker {
+  /* How a query is solved, e.g. with a RecursiveDAGSolverVisitorLC */
+  static interface Solver {
+    Set<Object> solve(LanguageConstraints.Box lcb);
+  }
+
+  static final class Query {
+    final LanguageConstraints.Box lcb;
+    final Solver solver;
+    private Set<Object> answer = null;
+    /* Bumped by every change the query depends on, with the lock held */
+    private volatile int changes = 0;
+    /* The value of changes the answer was solved for */
+    private volatile int answered = -1;
+    private Set<Object> dependencies = new HashSet<Object>();
+    int solves = 0;
+
+    private Query(LanguageConstraints.Box lcb0, Solver solver0) {
+      lcb = lcb0;
+      solver = solver0;
+    }
+
+    /* The answer, solved again if something it depends on changed */
+    synchronized Set<Object> answer() {
+      while (answered != changes) {
+        int seen = changes;
+        // recorded before the solve, so that the changes during the solve are not missed
+        record(this, dependencies(lcb));
+        AnswerKey key = (solves == 0) ? AnswerKey.of(lcb, solver) : null;
+        Set<Object> shared = (key == null) ? null : answers.lookup(key);
+        if (shared != null)
+          answer = shared;
+        else {
+          int at = LCSnapshot.version();
+          answer = solver.solve(lcb);
+          ++solves;
+          if (key != null && LCSnapshot.version() == at)
+            answers.store(key, answer);
+        }
+        answered = seen;
+      }
+      return answer;
+    }
+
+    boolean isValid() {
+      return answered == changes && answer != null;
+    }
+
+    private void invalidate() {
+      ++changes;
+    }
+  }
+
+  /* A box, by fingerprint, and how it is solved */
+  private static final class AnswerKey {
+    final long fingerprint;
+    final Solver solver;
+
+    private AnswerKey(long fingerprint0, Solver solver0) {
+      fingerprint = fingerprint0;
+      solver = solver0;
+    }
+
+    /* The key of lcb, or null if its answer is not to be shared */
+    static AnswerKey of(LanguageConstraints.Box lcb, Solver solver) {
+      LanguageConstraints lc = lcb.getLC();
+      if (lc == null || SCCIndex.v(false, true).inCycle(lc))
+        return null;
+      return new AnswerKey(LCFingerprint.of(lcb), solver);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof AnswerKey))
+        return false;
+      AnswerKey key = (AnswerKey) obj;
+      return fingerprint == key.fingerprint && solver == key.solver;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * (int) (fingerprint ^ (fingerprint >>> 32)) + System.identityHashCode(solver);
+    }
+  }
+
+  /* The answers of the queries, for the next queries of the same content */
+  private static final WeightedLRUCache answers = new WeightedLRUCache(
+      SolverCache.default_max_weight);
+  private static final Object lock = new Object();
+  /* The queries depending on a box or on the return of a method */
+  private static final Map<Object, Set<Query>> dependents = new HashMap<Object, Set<Query>>();
+
+  static Query track(LanguageConstraints.Box lcb, Solver solver) {
+    return new Query(lcb, solver);
+  }
+
+  static void untrack(Query query) {
+    record(query, new HashSet<Object>());
+  }
+
+  /* lcb, owned by Res2Constr, changed; or its union, which other boxes may share */
+  static void changed(LanguageConstraints.Box lcb) {
+    invalidate(lcb);
+    LanguageConstraints lc = lcb.getLC();
+    if (lc instanceof LanguageConstraints.Union)
+      invalidate(lc);
+  }
+
+  /* The return box of method changed, or was created */
+  static void changed(SootMethod method) {
+    invalidate(method);
+  }
+
+  private static void invalidate(Object key) {
+    synchronized (lock) {
+      Set<Query> queries = dependents.get(key);
+      if (queries == null)
+        return;
+      for (Query query : queries)
+        query.invalidate();
+    }
+  }
+
+  private static void record(Query query, Set<Object> dependencies) {
+    synchronized (lock) {
+      for (Object key : query.dependencies) {
+        Set<Query> queries = dependents.get(key);
+        if (queries != null && queries.remove(query) && queries.isEmpty())
+          dependents.remove(key);
+      }
+      query.dependencies = dependencies;
+      for (Object key : dependencies) {
+        Set<Query> queries = dependents.get(key);
+        if (queries == null) {
+          queries = new HashSet<Query>();
+          dependents.put(key, queries);
+        }
+        queries.add(query);
+      }
+    }
+  }
+
+  // ///////////////////////////////////////////////
+  /* The boxes and unions reachable from lcb, and the callees of the calls on the way */
+  static Set<Object> dependencies(LanguageConstraints.Box lcb) {
+    Set<Object> res = new HashSet<Object>();
+    List<LanguageConstraints.Box> work = new ArrayList<LanguageConstraints.Box>();
+    work.add(lcb);
+    while (!work.isEmpty()) {
+      LanguageConstraints.Box box = work.remove(work.size() - 1);
+      if (box == null || !res.add(box))
+        continue;
+      LanguageConstraints lc = box.getLC();
+      if (lc == null)
+        continue;
+      if (lc.kind == LanguageConstraints.UNION)
+        res.add(lc);
+      work.addAll(LCWalker.children(lc, true));
+      if (lc.kind == LanguageConstraints.PARAMETER) {
+        LanguageConstraints.Parameter lcp = (LanguageConstraints.Parameter) lc;
+        work.add(Res2Constr.getArgument(lcp.sm, lcp.paramNum));
+      } else if (lc.kind == LanguageConstraints.CALL && Scene.v().hasCallGraph()) {
+        LanguageConstraints.Call lcc = (LanguageConstraints.Call) lc;
+        for (Iterator<Edge> it = Scene.v().getCallGraph().edgesOutOf(lcc.stmt); it.hasNext();) {
+          SootMethod callee = it.next().tgt();
+          res.add(callee);
+          if (Res2Constr.knownReturn(callee))
+            work.add(Res2Constr.getReturn(callee));
+        }
+      }
+    }
+    return res;
+  }
+}
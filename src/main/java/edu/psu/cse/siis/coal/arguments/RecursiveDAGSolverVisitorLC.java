@@ -17,9 +17,18 @@
  */
 package edu.psu.cse.siis.coal.arguments;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import soot.Scene;
 import soot.SootMethod;
@@ -36,14 +45,27 @@ class RecursiveDAGSolverVisitorLC implements switchLC {
   int warnings = 0;
   Set<Object> result;
   int inline_depth = 0;
-  Set<LanguageConstraints> seen;
+  /* The nodes on the current path */
+  final LCMarks marks = LCMarks.get();
+  final int epoch = marks.newEpoch();
   LanguageConstraints.Box[] parameters;
   MethodReturnValueAnalysisInterface methodReturnValueAnalysisInterface;
+  /* Results shared with the other solvers of a batch, or null */
+  SolverCache cache = null;
+  /* Return values of callees per argument values, shared like cache, or null */
+  CallResultCache calls = null;
+  /* Pruning mode: no string the other strings of a node already stand for (see PatternSet) */
+  boolean prune = false;
+  /* Limits of the query, or null */
+  QueryBudget budget = null;
+  /* Parallel mode: the pool solving the large nodes, or null */
+  ForkJoinPool pool = null;
+  /* SCCIndex.weight from which a node is solved in parallel */
+  static int parallel_threshold = 4096;
 
   RecursiveDAGSolverVisitorLC(int inline_depth0, LanguageConstraints.Box[] actual_arguments,
       MethodReturnValueAnalysisInterface mrvai) {
     uid = g_uid++;
-    seen = new HashSet<LanguageConstraints>();
     result = new HashSet<Object>();
     parameters = actual_arguments;
     inline_depth = inline_depth0;
@@ -55,12 +77,28 @@ class RecursiveDAGSolverVisitorLC implements switchLC {
   }
 
   RecursiveDAGSolverVisitorLC(int inline_depth0) {
-    this(inline_depth0, null, new MethodReturnValueAnalysisInterface() {
-      @Override
-      public Set<Object> getMethodReturnValues(Call call) {
-        return null;
-      }
-    });
+    this(inline_depth0, null, NO_RETURN_VALUES);
+  }
+
+  /* Memoizing mode: the nodes solved by the solvers sharing cache are solved once */
+  RecursiveDAGSolverVisitorLC(int inline_depth0, SolverCache cache0) {
+    this(inline_depth0);
+    cache = cache0;
+  }
+
+  /* Same, and the calls with the same arguments are solved once too */
+  RecursiveDAGSolverVisitorLC(int inline_depth0, SolverCache cache0, CallResultCache calls0) {
+    this(inline_depth0, cache0);
+    calls = calls0;
+  }
+
+  /*
+   * Parallel mode: the elements of large unions and the parts of large concatenations are solved
+   * as tasks of pool. The MethodReturnValueAnalysisInterface must then be thread safe.
+   */
+  RecursiveDAGSolverVisitorLC(int inline_depth0, SolverCache cache0, ForkJoinPool pool0) {
+    this(inline_depth0, cache0);
+    pool = pool0;
   }
 
   RecursiveDAGSolverVisitorLC() {
@@ -70,7 +108,9 @@ class RecursiveDAGSolverVisitorLC implements switchLC {
   boolean solve(LanguageConstraints.Box lcb) {
     if (lcb == null)
       return false;
-    lcb.apply(this);
+    LCWalker.apply(lcb, this, true, inline_depth);
+    if (prune)
+      PatternSet.prune(result);
     return true;
   }
 
@@ -97,6 +137,11 @@ class RecursiveDAGSolverVisitorLC implements switchLC {
     result.add(lc.term);
   }
 
+  @Override
+  public void caseTerminalSet(LanguageConstraints.TerminalSet lc) {
+    result.addAll(Arrays.asList(lc.terms));
+  }
+
   @Override
   public void caseParameter(LanguageConstraints.Parameter lc) {
     if (!fieldMode && parameters != null // we are evaluating a parameter in a call context.
@@ -113,67 +158,328 @@ class RecursiveDAGSolverVisitorLC implements switchLC {
     }
   }
 
+  /*
+   * Can the walk below lc come back to lc? Outside a call context the answer comes from the SCC
+   * index, and the marks are skipped for the acyclic parts of the graph. In a call context
+   * parameters lead to the actual arguments, which the index does not know about. The arguments of
+   * calls are solved by this visitor too (see ReturnSummaries), hence the index follows calls.
+   */
+  private boolean mayRecur(LanguageConstraints lc) {
+    return parameters != null || SCCIndex.v(true, true).reachesCycle(lc);
+  }
+
+  /*
+   * Only the nodes without cycles below them are split, since the marks of the current path stay
+   * with the thread that set them, and only those shallow enough for the stack of a pool thread.
+   */
+  private boolean parallel(LanguageConstraints lc) {
+    if (pool == null || mayRecur(lc))
+      return false;
+    SCCIndex idx = SCCIndex.v(true);
+    return idx.weight(lc) >= parallel_threshold
+        && (long) idx.depth(lc) * (inline_depth + 1) <= LCWalker.max_inline_depth;
+  }
+
+  /* Solves boxes[i] into into[i], in parallel */
+  private void solveAll(List<LanguageConstraints.Box> boxes, List<Set<Object>> into) {
+    long[] weights = new long[boxes.size()];
+    for (int i = 0; i < weights.length; ++i)
+      weights[i] = SCCIndex.v(true).weight(boxes.get(i).getLC());
+    AtomicInteger task_warnings = new AtomicInteger();
+    SolveTask task =
+        new SolveTask(boxes, into, weights, 0, weights.length, LCSnapshot.current(), task_warnings);
+    if (ForkJoinTask.getPool() == pool)
+      task.invoke();
+    else
+      pool.invoke(task);
+    warnings += task_warnings.get();
+  }
+
+  private static Set<Object> concurrentSet() {
+    return Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
+  }
+
+  /* Splits boxes[from, to) until the halves are below parallel_threshold */
+  private final class SolveTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    final List<LanguageConstraints.Box> boxes;
+    final List<Set<Object>> into;
+    final long[] weights;
+    final int from;
+    final int to;
+    final LCSnapshot snap;
+    final AtomicInteger task_warnings;
+
+    SolveTask(List<LanguageConstraints.Box> boxes0, List<Set<Object>> into0, long[] weights0,
+        int from0, int to0, LCSnapshot snap0, AtomicInteger task_warnings0) {
+      boxes = boxes0;
+      into = into0;
+      weights = weights0;
+      from = from0;
+      to = to0;
+      snap = snap0;
+      task_warnings = task_warnings0;
+    }
+
+    @Override
+    protected void compute() {
+      long weight = 0;
+      for (int i = from; i < to; ++i)
+        weight += weights[i];
+      if (to - from > 1 && weight >= parallel_threshold) {
+        int middle = (from + to) >>> 1;
+        invokeAll(new SolveTask(boxes, into, weights, from, middle, snap, task_warnings),
+            new SolveTask(boxes, into, weights, middle, to, snap, task_warnings));
+        return;
+      }
+      LCSnapshot old_snap = LCSnapshot.current();
+      LCSnapshot.attach(snap);
+      try {
+        for (int i = from; i < to; ++i) {
+          RecursiveDAGSolverVisitorLC solveBox =
+              new RecursiveDAGSolverVisitorLC(inline_depth, cache, pool);
+          solveBox.methodReturnValueAnalysisInterface = methodReturnValueAnalysisInterface;
+          solveBox.calls = calls;
+          solveBox.prune = prune;
+          solveBox.budget = budget;
+          solveBox.fieldMode = fieldMode;
+          boxes.get(i).apply(solveBox);
+          // a set of its own: bound() may rewrite the set it is given
+          into.get(i).addAll(solveBox.result);
+          task_warnings.addAndGet(solveBox.warnings);
+        }
+      } finally {
+        LCSnapshot.attach(old_snap);
+      }
+    }
+  }
+
+  private void bound() {
+    LCWidening.bound(result);
+    if (prune)
+      PatternSet.prune(result);
+    if (budget != null && !budget.fits(result.size())) {
+      Set<String> patterns = LCWidening.widen(result, LCWidening.max_patterns);
+      result.clear();
+      result.addAll(patterns);
+    }
+  }
+
+  /* Was the result cut short by the budget? It is then an over-approximation */
+  boolean truncated() {
+    return budget != null && budget.isTruncated();
+  }
+
+  /* Out of budget: lc, not solved, is any string */
+  private boolean spent() {
+    if (budget == null || budget.spend())
+      return false;
+    result.add("(.*)");
+    return true;
+  }
+
+  /* Adds the cached result of lc, if any */
+  private boolean reuse(LanguageConstraints lc) {
+    if (cache == null || mayRecur(lc))
+      return false;
+    Set<Object> cached = cache.get(lc, inline_depth);
+    if (cached == null)
+      return false;
+    result.addAll(cached);
+    return true;
+  }
+
+  /* When lc is to be cached, solve it in a set of its own; returns the set to restore, or null */
+  private Set<Object> begin(LanguageConstraints lc) {
+    if (cache == null || mayRecur(lc))
+      return null;
+    Set<Object> old_result = result;
+    result = new HashSet<Object>();
+    return old_result;
+  }
+
+  private void end(LanguageConstraints lc, Set<Object> old_result) {
+    if (old_result == null)
+      return;
+    if (!truncated())
+      cache.put(lc, inline_depth, result);
+    old_result.addAll(result);
+    result = old_result;
+  }
+
   @Override
   public void caseUnion(LanguageConstraints.Union lc) {
-    if (seen.contains(lc)) {
+    if (spent() || reuse(lc))
+      return;
+    Set<Object> outer = begin(lc);
+    boolean track = mayRecur(lc);
+    if (track && marks.isMarked(lc, epoch)) {
       result.add("(.*)");
       return;
     }
-    seen.add(lc);
-    Iterator<LanguageConstraints.Box> it = lc.elements.iterator();
-    while (it.hasNext()) {
-      LanguageConstraints.Box lcb = it.next();
-      lcb.apply(this);
+    int prev = track ? marks.mark(lc, epoch) : 0;
+    if (parallel(lc)) {
+      Set<Object> merged = concurrentSet();
+      solveAll(lc.elements, Collections.nCopies(lc.elements.size(), merged));
+      result.addAll(merged);
+    } else {
+      Iterator<LanguageConstraints.Box> it = lc.elements.iterator();
+      while (it.hasNext()) {
+        LanguageConstraints.Box lcb = it.next();
+        lcb.apply(this);
+      }
+    }
+    bound();
+    if (track) {
+      assert (marks.isMarked(lc, epoch));
+      marks.unmark(lc, prev);
     }
-    assert (seen.contains(lc));
-    seen.remove(lc);
+    end(lc, outer);
   }
 
   @Override
   public void caseConcatenate(LanguageConstraints.Concatenate lc) {
-    if (seen.contains(lc)) {
+    if (spent() || reuse(lc))
+      return;
+    Set<Object> outer = begin(lc);
+    boolean track = mayRecur(lc);
+    if (track && marks.isMarked(lc, epoch)) {
       result.add("(.*)");
       return;
     }
-    seen.add(lc);
+    int prev = track ? marks.mark(lc, epoch) : 0;
     Set<Object> old_result = result;
     Set<Object> left_result = new HashSet<Object>();
-    result = left_result;
-    lc.left.apply(this);
-
     Set<Object> right_result = new HashSet<Object>();
-    result = right_result;
-    lc.right.apply(this);
+    if (parallel(lc)) {
+      solveAll(Arrays.asList(lc.left, lc.right), Arrays.asList(left_result, right_result));
+    } else {
+      result = left_result;
+      lc.left.apply(this);
 
-    result = old_result;
+      result = right_result;
+      lc.right.apply(this);
+
+      result = old_result;
+    }
 
     assert (!CCRefVisitor.ARRAY_FIELDS || !left_result.isEmpty());
     assert (!CCRefVisitor.ARRAY_FIELDS || !right_result.isEmpty());
+    LCWidening.boundProduct(left_result, right_result);
     for (Iterator<Object> lit = left_result.iterator(); lit.hasNext();) {
       Object lstr = lit.next();
       for (Iterator<Object> rit = right_result.iterator(); rit.hasNext();) {
         Object rstr = rit.next();
-        if (lstr instanceof String && rstr instanceof String) {
-          result.add((String) lstr + (String) rstr);
-        } else {
-          result.add("(.*)");
+        result.add(StringPattern.concat(lstr, rstr));
+      }
+    }
+    bound();
+    if (track) {
+      assert (marks.isMarked(lc, epoch));
+      marks.unmark(lc, prev);
+    }
+    end(lc, outer);
+  }
+
+  /* One product pass, left to right; (.*) absorbs what follows it */
+  @Override
+  public void caseConcatenateN(LanguageConstraints.ConcatenateN lc) {
+    if (spent() || reuse(lc))
+      return;
+    Set<Object> outer = begin(lc);
+    boolean track = mayRecur(lc);
+    if (track && marks.isMarked(lc, epoch)) {
+      result.add("(.*)");
+      return;
+    }
+    int prev = track ? marks.mark(lc, epoch) : 0;
+    Set<Object> old_result = result;
+    List<Set<Object>> solved = null;
+    if (parallel(lc)) {
+      solved = new ArrayList<Set<Object>>(lc.parts.length);
+      for (int i = 0; i < lc.parts.length; ++i)
+        solved.add(new HashSet<Object>());
+      solveAll(Arrays.asList(lc.parts), solved);
+    }
+    Set<Object> acc = Collections.<Object> singleton("");
+    for (int i = 0; i < lc.parts.length; ++i) {
+      if (solved != null)
+        result = solved.get(i);
+      else {
+        result = new HashSet<Object>();
+        lc.parts[i].apply(this);
+      }
+      assert (!CCRefVisitor.ARRAY_FIELDS || !result.isEmpty());
+      LCWidening.boundProduct(acc, result);
+      Set<Object> next = new HashSet<Object>();
+      for (Object lstr : acc) {
+        for (Object rstr : result) {
+          next.add(StringPattern.concat(lstr, rstr));
         }
       }
+      acc = next;
     }
-    assert (seen.contains(lc));
-    seen.remove(lc);
+    result = old_result;
+    result.addAll(acc);
+    bound();
+    if (track) {
+      assert (marks.isMarked(lc, epoch));
+      marks.unmark(lc, prev);
+    }
+    end(lc, outer);
   }
 
   @Override
   public void caseEq(LanguageConstraints.Eq lc) {
-    if (seen.contains(lc)) {
+    if (spent() || reuse(lc))
+      return;
+    Set<Object> outer = begin(lc);
+    boolean track = mayRecur(lc);
+    if (track && marks.isMarked(lc, epoch)) {
       result.add("(.*)");
       return;
     }
-    seen.add(lc);
+    int prev = track ? marks.mark(lc, epoch) : 0;
     lc.lcb.apply(this);
-    assert (seen.contains(lc));
-    seen.remove(lc);
+    if (track) {
+      assert (marks.isMarked(lc, epoch));
+      marks.unmark(lc, prev);
+    }
+    end(lc, outer);
+  }
+
+  /* Loops summarized by LCOptimizer: any number of repetitions is beyond a finite set */
+  @Override
+  public void caseStar(LanguageConstraints.Star lc) {
+    result.add("(.*)");
+  }
+
+  @Override
+  public void caseStringOp(LanguageConstraints.StringOp lc) {
+    if (spent() || reuse(lc))
+      return;
+    Set<Object> outer = begin(lc);
+    boolean track = mayRecur(lc);
+    if (track && marks.isMarked(lc, epoch)) {
+      result.add("(.*)");
+      return;
+    }
+    int prev = track ? marks.mark(lc, epoch) : 0;
+    Set<Object> old_result = result;
+    List<Set<Object>> values = new ArrayList<Set<Object>>(lc.operands.length);
+    for (LanguageConstraints.Box operand : lc.operands) {
+      result = new HashSet<Object>();
+      operand.apply(this);
+      values.add(result);
+    }
+    result = old_result;
+    lc.evalAll(values, result);
+    if (track) {
+      assert (marks.isMarked(lc, epoch));
+      marks.unmark(lc, prev);
+    }
+    end(lc, outer);
   }
 
   @Override
@@ -181,31 +487,55 @@ class RecursiveDAGSolverVisitorLC implements switchLC {
     throw new RuntimeException("BAD PENDING!");
   }
 
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  private static Set<Object>[] newArguments(Call lc) {
+    return new Set[lc.arguments.length];
+  }
+
+  /* The values of an argument of lc, lc being on the current path while it is solved */
+  private Set<Object> solveArgument(Call lc, LanguageConstraints.Box arg) {
+    boolean track = mayRecur(lc);
+    if (track && marks.isMarked(lc, epoch))
+      return Collections.<Object> singleton("(.*)");
+    int prev = track ? marks.mark(lc, epoch) : 0;
+    Set<Object> old_result = result;
+    result = new HashSet<Object>();
+    arg.apply(this);
+    Set<Object> res = result;
+    result = old_result;
+    if (track)
+      marks.unmark(lc, prev);
+    return res;
+  }
+
   public static interface MethodReturnValueAnalysisInterface {
     Set<Object> getMethodReturnValues(Call call);
   }
 
+  /* Knows no return value; shared so that the solvers using it share their ReturnSummaries */
+  static final MethodReturnValueAnalysisInterface NO_RETURN_VALUES =
+      new MethodReturnValueAnalysisInterface() {
+        @Override
+        public Set<Object> getMethodReturnValues(Call call) {
+          return null;
+        }
+      };
+
   @Override
   public void caseCall(Call lc) {
     assert (inline_depth >= 0);
+    if (spent() || reuse(lc))
+      return;
+    Set<Object> outer = begin(lc);
     if (inline_depth == 0)
       result.add("(.*)");
     else {
       Set<Object> methodReturnValues = methodReturnValueAnalysisInterface.getMethodReturnValues(lc);
       if (methodReturnValues == null) {
-        // Take care of parameters!
-        DBG.BUG("While recursing, parameters in this context look the same as "
-            + "the parameters in the callee context. "
-            + "That is a LanguageConstraints.Parameter passed via lc.arguments"
-            + " is really a parameter of this(caller) function, but it will be"
-            + " mistakenly interpreted as a parameter of the callee");
-        RecursiveDAGSolverVisitorLC solveCall =
-            new RecursiveDAGSolverVisitorLC(inline_depth - 1, lc.arguments,
-                methodReturnValueAnalysisInterface);
-        // SootMethod callee = lc.callee(); // TBD FIX THIS FOR POLYMORPHISM!/MULTIPLE
-        // TARGETS:
+        // The summaries of the callees, with the arguments solved here, in the caller context
         CallGraph cg = Scene.v().getCallGraph();
         boolean seen_any_HACK = false;
+        Set<Object>[] arguments = null;
 
         for (Iterator<Edge> ite = cg.edgesOutOf(lc.stmt); ite.hasNext();) {
           Edge e = ite.next();
@@ -214,11 +544,26 @@ class RecursiveDAGSolverVisitorLC implements switchLC {
             continue;
           seen_any_HACK = true;
           if (Res2Constr.knownReturn(callee)) {
-            LanguageConstraints.Box lcb_callee_return = Res2Constr.getReturn(callee);
-            /* Note that solveCall.fieldMode is properly reset to false */
-            lcb_callee_return.apply(solveCall);
-            assert (!solveCall.result.isEmpty());
-            result.addAll(solveCall.result);
+            if (arguments == null)
+              arguments = newArguments(lc);
+            // only the arguments the callee uses, which are also the key of calls
+            Set<Object>[] used = newArguments(lc);
+            int depth = inline_depth - 1;
+            Set<List<Object>> summary =
+                ReturnSummaries.of(callee, depth, methodReturnValueAnalysisInterface, budget);
+            for (int i : ReturnSummaries.parameters(summary))
+              if (i < arguments.length && lc.arguments[i] != null) {
+                if (arguments[i] == null)
+                  arguments[i] = solveArgument(lc, lc.arguments[i]);
+                used[i] = arguments[i];
+              }
+            Set<Object> values = (calls == null) ? null : calls.get(callee, depth, used);
+            if (values == null) {
+              values = ReturnSummaries.instantiate(summary, Arrays.asList(used));
+              if (calls != null && !truncated())
+                calls.put(callee, depth, used, values);
+            }
+            result.addAll(values);
           } else
             result.add("(.*)");
         }
@@ -229,5 +574,6 @@ class RecursiveDAGSolverVisitorLC implements switchLC {
         result.addAll(methodReturnValues);
       }
     }
+    end(lc, outer);
   }
 }
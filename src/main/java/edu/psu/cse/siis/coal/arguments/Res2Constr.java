@@ -17,19 +17,26 @@
  */
 package edu.psu.cse.siis.coal.arguments;
 
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import soot.SootMethod;
 import soot.jimple.FieldRef;
 import soot.jimple.ReturnStmt;
 import soot.jimple.Stmt;
 
+/*
+ * The maps are concurrent: a thread solving through an LCSnapshot may look up (and create) boxes
+ * while ConstraintCollector is adding constraints. A new box is only published once.
+ */
 class Res2Constr {
-  private static Map<Stmt, LanguageConstraints.Box> stmt2constr =
-      new HashMap<Stmt, LanguageConstraints.Box>();
+  private static ConcurrentMap<Stmt, LanguageConstraints.Box> stmt2constr =
+      new ConcurrentHashMap<Stmt, LanguageConstraints.Box>();
   private static Set<Stmt> processed = new HashSet<Stmt>();
 
   // /////////////////////////////////////////////
@@ -37,8 +44,9 @@ class Res2Constr {
     LanguageConstraints.Box lcb = stmt2constr.get(s);
     if (lcb == null) {
       lcb = new LanguageConstraints.Box();// //LanguageConstraints.PendingBox()
-      stmt2constr.put(s, lcb);
-      assert (stmt2constr.get(s) == lcb);
+      LanguageConstraints.Box other = stmt2constr.putIfAbsent(s, lcb);
+      if (other != null)
+        lcb = other;
     }
     assert (lcb != null);
     return lcb;
@@ -47,12 +55,9 @@ class Res2Constr {
   private static void putInBox(LanguageConstraints.Box lcb, LanguageConstraints.Box new_lcb) {
     LanguageConstraints lc = lcb.getLC();
     /*
-     * TBD: optimize and get rid of some of the LanguageConstraints.Eq If rop_lcb is a "temporary",
-     * the result of evaluating an expression, rather then the box for some other left-value (e.g.
-     * obtained by rop_lcb = Res2Constr.getStmt(...)) Perhaps set a bit in the boxes used by
-     * Res2Constr.put..., and if (the bit for rop_lcb is set) lcb.setLC(new
-     * LanguageConstraints.Eq(rop_lcb)); else lcb.setLC(rop_lcb.getLC()); // no need for Eq: rop_lcb
-     * is a temp
+     * The LanguageConstraints.Eq are not optimized here: new_lcb may be a temporary shared through
+     * LCFactory, and its LC must not become the (extensible) LC of lcb. Once collection is done,
+     * LCOptimizer removes the Eq that do not guard an open box.
      */
     if (lc == null || lc instanceof LanguageConstraints.Top)
       lcb.setLC(new LanguageConstraints.Eq(new_lcb));
@@ -64,6 +69,7 @@ class Res2Constr {
       lcu.addLCB(new_lcb);
       lcb.setLC(lcu);
     }
+    QueryTracker.changed(lcb);
   }
 
   static void putStmt(Stmt s, LanguageConstraints.Box new_lcb) {
@@ -74,6 +80,7 @@ class Res2Constr {
   static void putStmtBottom(Stmt s) {
     LanguageConstraints.Box lcb = getStmt(s);
     lcb.setLC(LanguageConstraints.Bottom.v());
+    QueryTracker.changed(lcb);
   }
 
   static boolean checkAndSetProcessedStmt(Stmt s) {
@@ -83,8 +90,8 @@ class Res2Constr {
   }
 
   // ///////////////////////////////////////
-  private static Map<String, LanguageConstraints.Box> field2constr =
-      new HashMap<String, LanguageConstraints.Box>();
+  private static ConcurrentMap<String, LanguageConstraints.Box> field2constr =
+      new ConcurrentHashMap<String, LanguageConstraints.Box>();
 
   static Map<String, LanguageConstraints.Box> get_field2constr() {
     return field2constr;
@@ -95,8 +102,10 @@ class Res2Constr {
     LanguageConstraints.Box lcb = field2constr.get(key);
     if (lcb == null) {
       lcb = new LanguageConstraints.FieldBox();// //LanguageConstraints.PendingBox()
-      field2constr.put(key, lcb);
-      assert (field2constr.get(key) == lcb);
+      lcb.open = true;
+      LanguageConstraints.Box other = field2constr.putIfAbsent(key, lcb);
+      if (other != null)
+        lcb = other;
     }
     assert (lcb != null);
     return lcb;
@@ -108,8 +117,8 @@ class Res2Constr {
   }
 
   // ///////////////////////////////////////
-  private static Map<SootMethod, LanguageConstraints.Box> ret2constr =
-      new HashMap<SootMethod, LanguageConstraints.Box>();
+  private static ConcurrentMap<SootMethod, LanguageConstraints.Box> ret2constr =
+      new ConcurrentHashMap<SootMethod, LanguageConstraints.Box>();
 
   static boolean knownReturn(SootMethod method) {
     return ret2constr.containsKey(method);
@@ -120,8 +129,10 @@ class Res2Constr {
     LanguageConstraints.Box lcb = ret2constr.get(key);
     if (lcb == null) {
       lcb = new LanguageConstraints.Box();// //LanguageConstraints.PendingBox()
-      ret2constr.put(key, lcb);
-      assert (ret2constr.get(key) == lcb);
+      lcb.open = true;
+      LanguageConstraints.Box other = ret2constr.putIfAbsent(key, lcb);
+      if (other != null)
+        lcb = other;
     }
     assert (lcb != null);
     return lcb;
@@ -130,19 +141,22 @@ class Res2Constr {
   static void putReturn(SootMethod sm, ReturnStmt rstmt, LanguageConstraints.Box new_lcb) {
     LanguageConstraints.Box lcb = getReturn(sm);
     putInBox(lcb, new_lcb);
+    QueryTracker.changed(sm);
   }
 
   // ///////////////////////////////////////
-  private static Map<String, LanguageConstraints.Box> argument2constr =
-      new HashMap<String, LanguageConstraints.Box>();
+  private static ConcurrentMap<String, LanguageConstraints.Box> argument2constr =
+      new ConcurrentHashMap<String, LanguageConstraints.Box>();
 
   static LanguageConstraints.Box getArgument(SootMethod sm, int arg) {
     String key = sm.getSignature() + "#" + arg;
     LanguageConstraints.Box lcb = argument2constr.get(key);
     if (lcb == null) {
       lcb = new LanguageConstraints.Box();// //LanguageConstraints.PendingBox()
-      argument2constr.put(key, lcb);
-      assert (argument2constr.get(key) == lcb);
+      lcb.open = true;
+      LanguageConstraints.Box other = argument2constr.putIfAbsent(key, lcb);
+      if (other != null)
+        lcb = other;
     }
     assert (lcb != null);
     return lcb;
@@ -153,6 +167,17 @@ class Res2Constr {
     putInBox(lcb, new_lcb);
   }
 
+  // ///////////////////////////////////////
+  /* All the boxes owned by Res2Constr, i.e. the roots of the constraint graph */
+  static List<LanguageConstraints.Box> roots() {
+    List<LanguageConstraints.Box> res = new ArrayList<LanguageConstraints.Box>();
+    res.addAll(stmt2constr.values());
+    res.addAll(field2constr.values());
+    res.addAll(ret2constr.values());
+    res.addAll(argument2constr.values());
+    return res;
+  }
+
   static void
       putCallArguments(SootMethod sm_context, Stmt stmt, LanguageConstraints.Box[] arguments) {
     // result = new LanguageConstraints.Box(new LanguageConstraints.Call(sm, stmt, arguments));
@@ -0,0 +1,511 @@
+/*
+ * Copyright (C) 2015 The University of Wisconsin and the Pennsylvania State University
+ *
+ * Author: Daniel Luchaup
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.psu.cse.siis.coal.arguments;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import soot.Scene;
+import soot.SootMethod;
+import soot.jimple.toolkits.callgraph.Edge;
+import edu.psu.cse.siis.coal.arguments.RecursiveDAGSolverVisitorLC.MethodReturnValueAnalysisInterface;
+
+/*
+ * The return value of a method as templates over its parameters, computed once per method and
+ * inline depth, so that a call is solved by putting the values of its arguments in the templates of
+ * its callee instead of walking the callee's constraints again.
+ *
+ * A template is a list of parts: a String, or the Integer number of a parameter of the method.
+ * The calls inside a method are solved with the templates of their callees, one level less deep,
+ * with the templates of their arguments; at depth 0 they are (.*), as with the inline_depth of the
+ * solvers. The summaries are computed bottom-up, depth-first over the callees with an explicit
+ * stack: a method is summarized once the summaries of its callees are known, and a callee that is
+ * already being summarized, i.e. recursion, returns (.*). The parameters of other methods (e.g.
+ * under a field) are solved in all contexts, as RecursiveDAGSolverVisitorLC does.
+ *
+ * Beyond LCWidening.max_results templates, the parameters become (.*) and the strings are widened
+ * by LCWidening. The summaries are dropped when the graph changes.
+ *
+ * The nodes walked to summarize a method are charged to the QueryBudget of the query that needs
+ * it. Once the budget is spent, the summary is (.*) and is not kept.
+ *
+ * The MethodReturnValueAnalysisInterface of the solver is asked first at each nested call, as the
+ * solver does at the calls it inlines, and is part of the key of the summaries.
+ */
+class ReturnSummaries {
+  private static final List<Object> ANY = Collections.<Object> singletonList("(.*)");
+
+  /* A method, with the number of levels of calls inlined in it and the return values known */
+  private static final class Key {
+    final SootMethod method;
+    final int depth;
+    final MethodReturnValueAnalysisInterface mrvai;
+
+    Key(SootMethod method0, int depth0, MethodReturnValueAnalysisInterface mrvai0) {
+      method = method0;
+      depth = depth0;
+      mrvai = mrvai0;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key))
+        return false;
+      Key key = (Key) obj;
+      return depth == key.depth && mrvai == key.mrvai && method.equals(key.method);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * (31 * method.hashCode() + depth) + System.identityHashCode(mrvai);
+    }
+  }
+
+  /* A method being summarized, and what is known of its callees */
+  private static final class Frame {
+    final Key key;
+    final Map<Key, Set<List<Object>>> callees = new HashMap<Key, Set<List<Object>>>();
+    List<Key> missing = Collections.emptyList();
+    int next = 0;
+
+    Frame(Key key0) {
+      key = key0;
+    }
+  }
+
+  private static final Map<Key, Set<List<Object>>> summaries =
+      new HashMap<Key, Set<List<Object>>>();
+  private static int version = -1;
+
+  /*
+   * The templates of the return value of method, which must have a known return, with the calls in
+   * it inlined depth levels deep, mrvai giving the return values of the calls it knows; the nodes
+   * walked are charged to budget, if not null
+   */
+  static Set<List<Object>> of(SootMethod method, int depth,
+      MethodReturnValueAnalysisInterface mrvai, QueryBudget budget) {
+    Key root = new Key(method, depth, mrvai);
+    int at = LCSnapshot.version();
+    Set<List<Object>> res = cached(root, at);
+    if (res != null)
+      return res;
+    // the methods on the path, whose callees are being summarized
+    List<Frame> path = new ArrayList<Frame>();
+    Set<SootMethod> onPath = new HashSet<SootMethod>();
+    path.add(new Frame(root));
+    onPath.add(method);
+    while (true) {
+      int top = path.size() - 1;
+      Frame frame = path.get(top);
+      if (frame.next < frame.missing.size()) {
+        Key callee = frame.missing.get(frame.next++);
+        Set<List<Object>> summary = cached(callee, at);
+        if (summary == null && onPath.contains(callee.method))
+          summary = Collections.singleton(ANY); // recursion
+        if (summary != null)
+          frame.callees.put(callee, summary);
+        else {
+          path.add(new Frame(callee));
+          onPath.add(callee.method);
+        }
+        continue;
+      }
+      Summarizer summarizer = new Summarizer(frame.key, frame.callees, budget);
+      LCWalker.apply(Res2Constr.getReturn(frame.key.method), summarizer, true, 0);
+      if (summarizer.truncated)
+        return Collections.singleton(ANY);
+      if (!summarizer.missing.isEmpty()) {
+        // summarized again once the missing callees are
+        frame.missing = new ArrayList<Key>(summarizer.missing);
+        frame.next = 0;
+        continue;
+      }
+      res = summarizer.result;
+      store(frame.key, res, at);
+      path.remove(top);
+      onPath.remove(frame.key.method);
+      if (path.isEmpty())
+        return res;
+      path.get(top - 1).callees.put(frame.key, res);
+    }
+  }
+
+  private static Set<List<Object>> cached(Key key, int at) {
+    synchronized (summaries) {
+      if (version != at) {
+        summaries.clear();
+        version = at;
+      }
+      return summaries.get(key);
+    }
+  }
+
+  private static void store(Key key, Set<List<Object>> summary, int at) {
+    synchronized (summaries) {
+      if (version == at)
+        summaries.put(key, summary);
+    }
+  }
+
+  /* The return values of a summary, with arguments[i] the values of parameter i, or null */
+  static Set<Object> instantiate(Set<List<Object>> summary,
+      List<? extends Collection<?>> arguments) {
+    List<Set<List<Object>>> args = new ArrayList<Set<List<Object>>>(arguments.size());
+    for (Collection<?> argument : arguments) {
+      if (argument == null) {
+        args.add(null);
+        continue;
+      }
+      Set<List<Object>> arg = new HashSet<List<Object>>();
+      for (Object value : argument)
+        arg.add((value instanceof String) ? Collections.<Object> singletonList(value) : ANY);
+      args.add(arg);
+    }
+    Set<Object> res = new HashSet<Object>();
+    for (List<Object> template : substitute(summary, args))
+      res.add(template.isEmpty() ? "" : template.get(0)); // no parameters left: one String
+    return res;
+  }
+
+  /* The parameters referred to by templates */
+  static Set<Integer> parameters(Set<List<Object>> templates) {
+    Set<Integer> res = new HashSet<Integer>();
+    for (List<Object> template : templates)
+      for (Object part : template)
+        if (part instanceof Integer)
+          res.add((Integer) part);
+    return res;
+  }
+
+  // ///////////////////////////////////////////////
+  /* Parameter i of templates replaced by the templates args[i] ((.*) if null) */
+  private static Set<List<Object>> substitute(Set<List<Object>> templates,
+      List<Set<List<Object>>> args) {
+    Set<List<Object>> res = new HashSet<List<Object>>();
+    for (List<Object> template : templates) {
+      List<Set<List<Object>>> parts = new ArrayList<Set<List<Object>>>(template.size());
+      for (Object part : template) {
+        if (part instanceof Integer) {
+          int i = (Integer) part;
+          Set<List<Object>> arg = (i < args.size()) ? args.get(i) : null;
+          parts.add((arg == null) ? Collections.singleton(ANY) : arg);
+        } else
+          parts.add(Collections.singleton(Collections.singletonList(part)));
+      }
+      res.addAll(product(parts));
+    }
+    return bound(res);
+  }
+
+  private static Set<List<Object>> product(List<Set<List<Object>>> parts) {
+    Set<List<Object>> acc = Collections.singleton(Collections.emptyList());
+    for (Set<List<Object>> part : parts) {
+      if (LCWidening.exceeds((long) acc.size() * part.size())) {
+        acc = bound(acc, true);
+        part = bound(part, true);
+      }
+      Set<List<Object>> next = new HashSet<List<Object>>();
+      for (List<Object> left : acc)
+        for (List<Object> right : part)
+          next.add(concatenate(left, right));
+      acc = next;
+    }
+    return acc;
+  }
+
+  /* Adjacent strings are merged */
+  private static List<Object> concatenate(List<Object> left, List<Object> right) {
+    if (left.isEmpty())
+      return right;
+    if (right.isEmpty())
+      return left;
+    List<Object> res = new ArrayList<Object>(left.size() + right.size());
+    res.addAll(left);
+    for (Object part : right) {
+      int last = res.size() - 1;
+      if (part instanceof String && res.get(last) instanceof String)
+        res.set(last, StringPattern.concat(res.get(last), part));
+      else
+        res.add(part);
+    }
+    return res;
+  }
+
+  private static Set<List<Object>> bound(Set<List<Object>> templates) {
+    return bound(templates, false);
+  }
+
+  /* Beyond the bound (or always, with force), parameters become (.*) and the strings are widened */
+  private static Set<List<Object>> bound(Set<List<Object>> templates, boolean force) {
+    if (!LCWidening.exceeds(templates.size())
+        && !(force && templates.size() > LCWidening.max_patterns))
+      return templates;
+    Set<String> strs = new HashSet<String>();
+    for (List<Object> template : templates) {
+      StringBuilder sb = new StringBuilder();
+      for (Object part : template)
+        sb.append((part instanceof String) ? (String) part : "(.*)");
+      strs.add(sb.toString());
+    }
+    Set<List<Object>> res = new HashSet<List<Object>>();
+    for (String str : LCWidening.widen(strs, LCWidening.max_patterns))
+      res.add(Collections.<Object> singletonList(str));
+    return res;
+  }
+
+  // ///////////////////////////////////////////////
+  /*
+   * The templates of a box of the summarized method. The callees not in callees are collected in
+   * missing, and stand for (.*) meanwhile.
+   */
+  static final class Summarizer implements switchLC {
+    final SootMethod method;
+    final int depth;
+    final MethodReturnValueAnalysisInterface mrvai;
+    final Map<Key, Set<List<Object>>> callees;
+    final Set<Key> missing = new LinkedHashSet<Key>();
+    final QueryBudget budget;
+    /* The budget ran out: the result is incomplete */
+    boolean truncated = false;
+    boolean fieldMode = false;
+    Set<List<Object>> result = new HashSet<List<Object>>();
+    /* The nodes on the current path */
+    final LCMarks marks = LCMarks.get();
+    final int epoch = marks.newEpoch();
+
+    private Summarizer(Key key, Map<Key, Set<List<Object>>> callees0, QueryBudget budget0) {
+      method = key.method;
+      depth = key.depth;
+      mrvai = key.mrvai;
+      callees = callees0;
+      budget = budget0;
+    }
+
+    private Set<List<Object>> solve(LanguageConstraints.Box lcb) {
+      Set<List<Object>> old_result = result;
+      result = new HashSet<List<Object>>();
+      if (lcb != null)
+        lcb.apply(this);
+      Set<List<Object>> res = result;
+      result = old_result;
+      return res;
+    }
+
+    private void add(String str) {
+      result.add(Collections.<Object> singletonList(str));
+    }
+
+    @Override
+    public boolean setFieldMode(boolean mode) {
+      boolean old_fieldMode = fieldMode;
+      fieldMode = mode;
+      return old_fieldMode;
+    }
+
+    /* Returns false, after adding (.*), when lc is already on the current path or out of budget */
+    private boolean enter(LanguageConstraints lc) {
+      if (truncated || budget != null && !budget.spend()) {
+        truncated = true;
+        add("(.*)");
+        return false;
+      }
+      if (!SCCIndex.v(true, true).reachesCycle(lc))
+        return true;
+      if (marks.isMarked(lc, epoch)) {
+        add("(.*)");
+        return false;
+      }
+      return true;
+    }
+
+    private int mark(LanguageConstraints lc) {
+      return SCCIndex.v(true, true).reachesCycle(lc) ? marks.mark(lc, epoch) : -1;
+    }
+
+    private void unmark(LanguageConstraints lc, int prev) {
+      if (prev >= 0)
+        marks.unmark(lc, prev);
+    }
+
+    @Override
+    public void caseTop(LanguageConstraints.Top lc) {
+    }
+
+    @Override
+    public void caseBottom(LanguageConstraints.Bottom lc) {
+      add("(.*)");
+    }
+
+    @Override
+    public void caseTerminal(LanguageConstraints.Terminal lc) {
+      add(lc.term);
+    }
+
+    @Override
+    public void caseTerminalSet(LanguageConstraints.TerminalSet lc) {
+      for (String term : lc.terms)
+        add(term);
+    }
+
+    @Override
+    public void caseParameter(LanguageConstraints.Parameter lc) {
+      if (!fieldMode && lc.sm.equals(method))
+        result.add(Collections.<Object> singletonList(lc.paramNum));
+      else
+        Res2Constr.getArgument(lc.sm, lc.paramNum).apply(this);
+    }
+
+    @Override
+    public void caseUnion(LanguageConstraints.Union lc) {
+      if (!enter(lc))
+        return;
+      int prev = mark(lc);
+      for (LanguageConstraints.Box lcb : lc.elements)
+        result.addAll(solve(lcb));
+      result = bound(result);
+      unmark(lc, prev);
+    }
+
+    @Override
+    public void caseConcatenate(LanguageConstraints.Concatenate lc) {
+      if (!enter(lc))
+        return;
+      int prev = mark(lc);
+      result.addAll(product(Arrays.asList(solve(lc.left), solve(lc.right))));
+      result = bound(result);
+      unmark(lc, prev);
+    }
+
+    @Override
+    public void caseConcatenateN(LanguageConstraints.ConcatenateN lc) {
+      if (!enter(lc))
+        return;
+      int prev = mark(lc);
+      List<Set<List<Object>>> parts = new ArrayList<Set<List<Object>>>(lc.parts.length);
+      for (LanguageConstraints.Box part : lc.parts)
+        parts.add(solve(part));
+      result.addAll(product(parts));
+      result = bound(result);
+      unmark(lc, prev);
+    }
+
+    @Override
+    public void caseEq(LanguageConstraints.Eq lc) {
+      if (!enter(lc))
+        return;
+      int prev = mark(lc);
+      lc.lcb.apply(this);
+      unmark(lc, prev);
+    }
+
+    @Override
+    public void caseStar(LanguageConstraints.Star lc) {
+      add("(.*)");
+    }
+
+    /* Only on strings: an operand that depends on a parameter makes it (.*) */
+    @Override
+    public void caseStringOp(LanguageConstraints.StringOp lc) {
+      if (!enter(lc))
+        return;
+      int prev = mark(lc);
+      List<Set<Object>> values = new ArrayList<Set<Object>>(lc.operands.length);
+      for (LanguageConstraints.Box operand : lc.operands) {
+        Set<List<Object>> templates = solve(operand);
+        if (!parameters(templates).isEmpty()) {
+          values = null;
+          break;
+        }
+        Set<Object> strs = new HashSet<Object>();
+        for (List<Object> template : templates)
+          strs.add(template.isEmpty() ? "" : template.get(0));
+        values.add(strs);
+      }
+      if (values == null)
+        add("(.*)");
+      else {
+        Set<Object> strs = new HashSet<Object>();
+        lc.evalAll(values, strs);
+        for (Object str : strs)
+          add((String) str);
+      }
+      unmark(lc, prev);
+    }
+
+    @Override
+    public void casePending(LanguageConstraints.Pending lc) {
+      throw new RuntimeException("BAD PENDING!");
+    }
+
+    private Set<List<Object>> summary(Key callee) {
+      Set<List<Object>> res = callees.get(callee);
+      if (res == null) {
+        missing.add(callee);
+        return Collections.singleton(ANY);
+      }
+      return res;
+    }
+
+    @Override
+    public void caseCall(LanguageConstraints.Call lc) {
+      if (depth == 0 || !Scene.v().hasCallGraph()) {
+        add("(.*)");
+        return;
+      }
+      Set<Object> values = mrvai.getMethodReturnValues(lc);
+      if (values != null) {
+        for (Object value : values)
+          result.add((value instanceof String) ? Collections.<Object> singletonList(value) : ANY);
+        return;
+      }
+      List<Set<List<Object>>> args = null;
+      boolean seen_any = false;
+      for (Iterator<Edge> ite = Scene.v().getCallGraph().edgesOutOf(lc.stmt); ite.hasNext();) {
+        SootMethod callee = ite.next().tgt();
+        if (callee.getSignature().endsWith(": void <clinit>()>"))
+          continue;
+        seen_any = true;
+        if (!Res2Constr.knownReturn(callee)) {
+          add("(.*)");
+          continue;
+        }
+        if (args == null) {
+          if (!enter(lc))
+            return;
+          int prev = mark(lc);
+          args = new ArrayList<Set<List<Object>>>(lc.arguments.length);
+          for (LanguageConstraints.Box arg : lc.arguments)
+            args.add((arg == null) ? null : solve(arg));
+          unmark(lc, prev);
+        }
+        result.addAll(substitute(summary(new Key(callee, depth - 1, mrvai)), args));
+      }
+      if (!seen_any)
+        add("(.*)");
+    }
+  }
+}
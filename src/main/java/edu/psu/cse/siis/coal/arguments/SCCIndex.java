@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2015 The University of Wisconsin and the Pennsylvania State University
+ *
+ * Author: Daniel Luchaup
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.psu.cse.siis.coal.arguments;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Strongly connected components of the constraint graph (Tarjan), computed lazily from the nodes
+ * that are queried and kept until the graph changes (see LanguageConstraints.g_version). A thread
+ * that pinned an LCSnapshot gets the indexes of its snapshot.
+ *
+ * The nodes are the LanguageConstraints; the edges go from Union/Concatenate/Eq to the LC of their
+ * child boxes, i.e. what CheckRecursionVisitorLC follows. With follow_parameters, a Parameter also
+ * has an edge to the LC of its argument box, which is what RecursiveDAGSolverVisitorLC follows when
+ * it evaluates a parameter in all contexts. By default Call nodes have no edges, since solvers handle
+ * them with a fresh visitor; with follow_calls they have an edge to each of their arguments.
+ *
+ * The queries are synchronized, for the tasks of a parallel solver.
+ */
+class SCCIndex {
+  private static SCCIndex[] indexes = new SCCIndex[4];
+
+  static SCCIndex v(boolean follow_parameters) {
+    return v(follow_parameters, false);
+  }
+
+  static SCCIndex v(boolean follow_parameters, boolean follow_calls) {
+    int slot = (follow_parameters ? 1 : 0) + (follow_calls ? 2 : 0);
+    LCSnapshot snap = LCSnapshot.current();
+    SCCIndex[] slots = (snap == null) ? indexes : snap.indexes;
+    SCCIndex idx = slots[slot];
+    if (idx == null || idx.version != LCSnapshot.version()) {
+      idx = new SCCIndex(follow_parameters, follow_calls);
+      slots[slot] = idx;
+    }
+    return idx;
+  }
+
+  /*
+   * An index that keeps answering after the graph changed: the nodes queried before the change keep
+   * their component, and the others get theirs from the graph at the time of the query. This is
+   * only sound for rewrites that never add a path between existing nodes, like those of LCOptimizer:
+   * the cycles of the nodes that were already queried are then over-approximated.
+   */
+  static SCCIndex detached(boolean follow_parameters) {
+    return new SCCIndex(follow_parameters, false, true);
+  }
+
+  private static final class Info {
+    int index;
+    int lowlink;
+    boolean onStack;
+    boolean done;
+    boolean cyclic;
+    boolean reachesCycle;
+    int depth;
+    long weight;
+    int changed;
+    List<LanguageConstraints> component;
+    /* Kept until the SCC is done, so that the edges are looked at only once */
+    List<LanguageConstraints> succs;
+  }
+
+  final boolean follow_parameters;
+  final boolean follow_calls;
+  final int version;
+  final boolean detached;
+  private final Map<LanguageConstraints, Info> infos = new HashMap<LanguageConstraints, Info>();
+  private int nextIndex = 0;
+
+  private SCCIndex(boolean follow_parameters0, boolean follow_calls0) {
+    this(follow_parameters0, follow_calls0, false);
+  }
+
+  private SCCIndex(boolean follow_parameters0, boolean follow_calls0, boolean detached0) {
+    follow_parameters = follow_parameters0;
+    follow_calls = follow_calls0;
+    version = LCSnapshot.version();
+    detached = detached0;
+  }
+
+  /* Is lc part of a cycle? */
+  boolean inCycle(LanguageConstraints lc) {
+    return lc != null && info(lc).cyclic;
+  }
+
+  /* Is there a cycle anywhere below lc (lc included)? */
+  boolean reachesCycle(LanguageConstraints lc) {
+    return lc != null && info(lc).reachesCycle;
+  }
+
+  boolean hasCycle(LanguageConstraints.Box lcb) {
+    return lcb != null && reachesCycle(lcb.getLC());
+  }
+
+  /*
+   * Bound on the number of nodes on a path from lc that does not repeat a node, i.e. on the
+   * recursion depth of a visitor that stops at the nodes it has already seen.
+   */
+  int depth(LanguageConstraints lc) {
+    return (lc == null) ? 0 : info(lc).depth;
+  }
+
+  /*
+   * Number of nodes a visitor that does not share the results of common nodes goes through from
+   * lc, counting the nodes of a cycle once; saturates at Long.MAX_VALUE.
+   */
+  long weight(LanguageConstraints lc) {
+    return (lc == null) ? 0 : info(lc).weight;
+  }
+
+  /*
+   * The last version at which a box below lc changed, or a union below lc (lc included) was
+   * extended or rewritten: what lc stands for is the same since then.
+   */
+  int changed(LanguageConstraints lc) {
+    return (lc == null) ? 0 : info(lc).changed;
+  }
+
+  /* The members of the SCC of lc, which all share the same list */
+  List<LanguageConstraints> component(LanguageConstraints lc) {
+    return info(lc).component;
+  }
+
+  private synchronized Info info(LanguageConstraints lc) {
+    assert (detached || version == LCSnapshot.version());
+    Info info = infos.get(lc);
+    if (info == null || !info.done) {
+      compute(lc);
+      info = infos.get(lc);
+    }
+    return info;
+  }
+
+  // ///////////////////////////////////////////////
+  List<LanguageConstraints> successors(LanguageConstraints lc) {
+    List<LanguageConstraints> res = new ArrayList<LanguageConstraints>();
+    for (LanguageConstraints.Box lcb : LCWalker.children(lc, follow_calls))
+      add(res, lcb);
+    if (follow_parameters && lc.kind == LanguageConstraints.PARAMETER) {
+      LanguageConstraints.Parameter lcp = (LanguageConstraints.Parameter) lc;
+      add(res, Res2Constr.getArgument(lcp.sm, lcp.paramNum));
+    }
+    return res;
+  }
+
+  private static void add(List<LanguageConstraints> res, LanguageConstraints.Box lcb) {
+    if (lcb != null && lcb.getLC() != null)
+      res.add(lcb.getLC());
+  }
+
+  /* The last change to lc itself or to the boxes it points to */
+  private int localChange(LanguageConstraints lc) {
+    int res = (lc.kind == LanguageConstraints.UNION) ? ((LanguageConstraints.Union) lc).version : 0;
+    for (LanguageConstraints.Box lcb : LCWalker.children(lc, follow_calls))
+      if (lcb != null)
+        res = Math.max(res, lcb.version);
+    if (follow_parameters && lc.kind == LanguageConstraints.PARAMETER) {
+      LanguageConstraints.Parameter lcp = (LanguageConstraints.Parameter) lc;
+      LanguageConstraints.Box arg = Res2Constr.getArgument(lcp.sm, lcp.paramNum);
+      if (arg != null)
+        res = Math.max(res, arg.version);
+    }
+    return res;
+  }
+
+  /* Iterative Tarjan from root; the SCCs already done are not visited again */
+  private void compute(LanguageConstraints root) {
+    List<LanguageConstraints> stack = new ArrayList<LanguageConstraints>();
+    List<LanguageConstraints> callStack = new ArrayList<LanguageConstraints>();
+    List<List<LanguageConstraints>> succStack = new ArrayList<List<LanguageConstraints>>();
+    List<Integer> posStack = new ArrayList<Integer>();
+
+    enter(root, stack, callStack, succStack, posStack);
+    while (!callStack.isEmpty()) {
+      int top = callStack.size() - 1;
+      LanguageConstraints lc = callStack.get(top);
+      Info info = infos.get(lc);
+      List<LanguageConstraints> succs = succStack.get(top);
+      int pos = posStack.get(top);
+      if (pos < succs.size()) {
+        posStack.set(top, pos + 1);
+        LanguageConstraints succ = succs.get(pos);
+        Info sinfo = infos.get(succ);
+        if (sinfo == null)
+          enter(succ, stack, callStack, succStack, posStack);
+        else if (sinfo.onStack)
+          info.lowlink = Math.min(info.lowlink, sinfo.index);
+        continue;
+      }
+      // all successors done
+      callStack.remove(top);
+      succStack.remove(top);
+      posStack.remove(top);
+      if (top > 0) {
+        Info parent = infos.get(callStack.get(top - 1));
+        parent.lowlink = Math.min(parent.lowlink, info.lowlink);
+      }
+      if (info.lowlink == info.index)
+        popComponent(lc, stack);
+    }
+  }
+
+  private void enter(LanguageConstraints lc, List<LanguageConstraints> stack,
+      List<LanguageConstraints> callStack, List<List<LanguageConstraints>> succStack,
+      List<Integer> posStack) {
+    Info info = new Info();
+    info.index = info.lowlink = nextIndex++;
+    info.onStack = true;
+    infos.put(lc, info);
+    stack.add(lc);
+    callStack.add(lc);
+    info.succs = successors(lc);
+    info.changed = localChange(lc);
+    succStack.add(info.succs);
+    posStack.add(0);
+  }
+
+  private void popComponent(LanguageConstraints root, List<LanguageConstraints> stack) {
+    List<LanguageConstraints> component = new ArrayList<LanguageConstraints>();
+    LanguageConstraints lc;
+    do {
+      lc = stack.remove(stack.size() - 1);
+      infos.get(lc).onStack = false;
+      component.add(lc);
+    } while (lc != root && !lc.equals(root));
+
+    boolean cyclic = component.size() > 1;
+    boolean reaches = false;
+    int below = 0;
+    long weight = component.size();
+    int changed = 0;
+    for (LanguageConstraints member : component) {
+      changed = Math.max(changed, infos.get(member).changed);
+      // Pending stands for a node that is being expanded: count it as a cycle
+      if (member.kind == LanguageConstraints.PENDING)
+        cyclic = true;
+      for (LanguageConstraints succ : infos.get(member).succs) {
+        Info sinfo = infos.get(succ);
+        if (component.size() == 1 && succ.equals(member))
+          cyclic = true; // self loop
+        else if (sinfo.done) {
+          reaches |= sinfo.reachesCycle;
+          below = Math.max(below, sinfo.depth);
+          changed = Math.max(changed, sinfo.changed);
+          weight = (weight > Long.MAX_VALUE - sinfo.weight) ? Long.MAX_VALUE : weight + sinfo.weight;
+        }
+      }
+    }
+    for (LanguageConstraints member : component) {
+      Info info = infos.get(member);
+      info.done = true;
+      info.cyclic = cyclic;
+      info.reachesCycle = cyclic || reaches;
+      info.depth = component.size() + below;
+      info.weight = weight;
+      info.changed = changed;
+      info.component = component;
+      info.succs = null;
+    }
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2015 The University of Wisconsin and the Pennsylvania State University
+ *
+ * Author: Daniel Luchaup
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.psu.cse.siis.coal.arguments;
+
+import java.util.Set;
+
+/*
+ * Results of RecursiveDAGSolverVisitorLC per node, shared by the solvers of a batch of queries so
+ * that a node reached from many places is solved once.
+ *
+ * Only the nodes whose result does not depend on how they are reached are cached: no parameter
+ * bound to call arguments, and no cycle below them (see RecursiveDAGSolverVisitorLC.mayRecur). The
+ * key is the fingerprint of the node (see LCFingerprint), so that the nodes with the same content
+ * share their result, e.g. the copies a method makes of the same expression. The result also
+ * depends on how many calls deep the solver may inline, which is part of the key. The
+ * solvers sharing a cache must use the same MethodReturnValueAnalysisInterface and pruning mode.
+ *
+ * The entries are weighted and evicted as in WeightedLRUCache. The cache may be shared by the tasks
+ * of a parallel solver.
+ */
+class SolverCache extends WeightedLRUCache {
+  static int default_max_weight = 1 << 16;
+
+  private static final class Key {
+    final long fingerprint;
+    final int inline_depth;
+
+    Key(LanguageConstraints lc, int inline_depth0) {
+      fingerprint = LCFingerprint.of(lc);
+      inline_depth = inline_depth0;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key))
+        return false;
+      Key key = (Key) obj;
+      return inline_depth == key.inline_depth && fingerprint == key.fingerprint;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * (int) (fingerprint ^ (fingerprint >>> 32)) + inline_depth;
+    }
+  }
+
+  SolverCache(int max_weight0) {
+    super(max_weight0);
+  }
+
+  SolverCache() {
+    this(default_max_weight);
+  }
+
+  /* The result of lc, or null; not to be modified */
+  Set<Object> get(LanguageConstraints lc, int inline_depth) {
+    return lookup(new Key(lc, inline_depth));
+  }
+
+  void put(LanguageConstraints lc, int inline_depth, Set<Object> result) {
+    store(new Key(lc, inline_depth), result);
+  }
+}
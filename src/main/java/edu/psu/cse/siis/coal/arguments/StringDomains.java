@@ -0,0 +1,393 @@
+/*
+ * Copyright (C) 2015 The University of Wisconsin and the Pennsylvania State University
+ *
+ * Author: Daniel Luchaup
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.psu.cse.siis.coal.arguments;
+
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/*
+ * The StringLattices of FixpointSolver, from the most precise to the cheapest:
+ * 
+ * ConstantSet: at most max_constants strings, then (.*);
+ * Prefix and Suffix: the longest prefix (suffix) the strings share, or the string if there is one;
+ * CharSet: the characters the strings may contain;
+ * Length: an interval of lengths.
+ */
+final class StringDomains {
+  private StringDomains() {
+  }
+
+  // ///////////////////////////////////////////////
+  /* Sets of strings, where {(.*)} is any string */
+  static final class ConstantSet implements StringLattice<Set<String>> {
+    static int max_constants = 64;
+
+    private static final Set<String> BOTTOM = Collections.emptySet();
+    private static final Set<String> TOP = Collections.singleton("(.*)");
+
+    @Override
+    public Set<String> bottom() {
+      return BOTTOM;
+    }
+
+    @Override
+    public Set<String> top() {
+      return TOP;
+    }
+
+    @Override
+    public Set<String> constant(String str) {
+      return (str.indexOf("(.*)") < 0) ? Collections.singleton(str) : TOP;
+    }
+
+    @Override
+    public Set<String> join(Set<String> a, Set<String> b) {
+      if (a.equals(TOP) || b.equals(TOP))
+        return TOP;
+      if (a.containsAll(b))
+        return a;
+      if (b.containsAll(a))
+        return b;
+      Set<String> res = new HashSet<String>(a);
+      res.addAll(b);
+      return (res.size() > max_constants) ? TOP : Collections.unmodifiableSet(res);
+    }
+
+    @Override
+    public Set<String> concatenate(Set<String> a, Set<String> b) {
+      if (a.isEmpty() || b.isEmpty())
+        return BOTTOM;
+      if (a.equals(TOP) || b.equals(TOP) || (long) a.size() * b.size() > max_constants)
+        return TOP;
+      Set<String> res = new HashSet<String>();
+      for (String left : a)
+        for (String right : b)
+          res.add(left + right);
+      return Collections.unmodifiableSet(res);
+    }
+
+    /* A set still growing after widen_after changes would only grow up to max_constants */
+    @Override
+    public Set<String> widen(Set<String> prev, Set<String> next) {
+      return next.equals(prev) ? prev : TOP;
+    }
+
+    @Override
+    public Set<String> strings(Set<String> v) {
+      return v.equals(TOP) ? null : v;
+    }
+  }
+
+  // ///////////////////////////////////////////////
+  /* A prefix or suffix shared by all the strings, or the one string there is */
+  static final class Affix {
+    static final Affix BOTTOM = new Affix(null, false);
+
+    /* null for bottom */
+    final String str;
+    /* str is the only string */
+    final boolean exact;
+
+    Affix(String str0, boolean exact0) {
+      str = str0;
+      exact = exact0;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Affix))
+        return false;
+      Affix affix = (Affix) obj;
+      return exact == affix.exact && ((str == null) ? affix.str == null : str.equals(affix.str));
+    }
+
+    @Override
+    public int hashCode() {
+      return ((str == null) ? 0 : str.hashCode()) * 2 + (exact ? 1 : 0);
+    }
+  }
+
+  static class Prefix implements StringLattice<Affix> {
+    private static final Affix TOP = new Affix("", false);
+
+    @Override
+    public Affix bottom() {
+      return Affix.BOTTOM;
+    }
+
+    @Override
+    public Affix top() {
+      return TOP;
+    }
+
+    @Override
+    public Affix constant(String str) {
+      int any = str.indexOf("(.*)");
+      return (any < 0) ? new Affix(str, true) : new Affix(str.substring(0, any), false);
+    }
+
+    @Override
+    public Affix join(Affix a, Affix b) {
+      if (a.str == null)
+        return b;
+      if (b.str == null || a.equals(b))
+        return a;
+      return new Affix(a.str.substring(0, common(a.str, b.str)), false);
+    }
+
+    int common(String a, String b) {
+      int n = Math.min(a.length(), b.length());
+      int i = 0;
+      while (i < n && a.charAt(i) == b.charAt(i))
+        ++i;
+      return i;
+    }
+
+    @Override
+    public Affix concatenate(Affix a, Affix b) {
+      if (a.str == null || b.str == null)
+        return Affix.BOTTOM;
+      return a.exact ? new Affix(a.str + b.str, b.exact) : a;
+    }
+
+    /* join only shortens a prefix that is not exact: it is a widening already */
+    @Override
+    public Affix widen(Affix prev, Affix next) {
+      return join(prev, next);
+    }
+
+    @Override
+    public Set<String> strings(Affix v) {
+      return (v.exact) ? Collections.singleton(v.str) : null;
+    }
+  }
+
+  static final class Suffix extends Prefix {
+    @Override
+    public Affix constant(String str) {
+      int any = str.lastIndexOf("(.*)");
+      return (any < 0) ? new Affix(str, true) : new Affix(str.substring(any + "(.*)".length()),
+          false);
+    }
+
+    @Override
+    public Affix join(Affix a, Affix b) {
+      if (a.str == null)
+        return b;
+      if (b.str == null || a.equals(b))
+        return a;
+      int n = common(new StringBuilder(a.str).reverse().toString(),
+          new StringBuilder(b.str).reverse().toString());
+      return new Affix(a.str.substring(a.str.length() - n), false);
+    }
+
+    @Override
+    public Affix concatenate(Affix a, Affix b) {
+      if (a.str == null || b.str == null)
+        return Affix.BOTTOM;
+      return b.exact ? new Affix(a.str + b.str, a.exact) : b;
+    }
+  }
+
+  // ///////////////////////////////////////////////
+  /* The characters the strings may contain; any character beyond max_chars of them */
+  static final class CharSet implements StringLattice<CharSet.Chars> {
+    static int max_chars = 128;
+
+    static final class Chars {
+      /* null for any character */
+      final BitSet chars;
+      /* no string at all */
+      final boolean empty;
+
+      Chars(BitSet chars0, boolean empty0) {
+        chars = chars0;
+        empty = empty0;
+      }
+
+      boolean contains(char c) {
+        return !empty && (chars == null || chars.get(c));
+      }
+
+      @Override
+      public boolean equals(Object obj) {
+        if (!(obj instanceof Chars))
+          return false;
+        Chars other = (Chars) obj;
+        return empty == other.empty
+            && ((chars == null) ? other.chars == null : chars.equals(other.chars));
+      }
+
+      @Override
+      public int hashCode() {
+        return ((chars == null) ? 0 : chars.hashCode()) * 2 + (empty ? 1 : 0);
+      }
+    }
+
+    private static final Chars BOTTOM = new Chars(new BitSet(), true);
+    private static final Chars TOP = new Chars(null, false);
+
+    @Override
+    public Chars bottom() {
+      return BOTTOM;
+    }
+
+    @Override
+    public Chars top() {
+      return TOP;
+    }
+
+    @Override
+    public Chars constant(String str) {
+      if (str.indexOf("(.*)") >= 0)
+        return TOP;
+      BitSet chars = new BitSet();
+      for (int i = 0; i < str.length(); ++i)
+        chars.set(str.charAt(i));
+      return new Chars(chars, false);
+    }
+
+    @Override
+    public Chars join(Chars a, Chars b) {
+      if (a.empty)
+        return b;
+      if (b.empty)
+        return a;
+      if (a.chars == null || b.chars == null)
+        return TOP;
+      BitSet chars = (BitSet) a.chars.clone();
+      chars.or(b.chars);
+      return (chars.cardinality() > max_chars) ? TOP : new Chars(chars, false);
+    }
+
+    @Override
+    public Chars concatenate(Chars a, Chars b) {
+      return (a.empty || b.empty) ? BOTTOM : join(a, b);
+    }
+
+    /* Finite height already */
+    @Override
+    public Chars widen(Chars prev, Chars next) {
+      return join(prev, next);
+    }
+
+    @Override
+    public Set<String> strings(Chars v) {
+      return null;
+    }
+  }
+
+  // ///////////////////////////////////////////////
+  /* The lengths of the strings, from min to max, max being UNBOUNDED for no bound */
+  static final class Length implements StringLattice<Length.Interval> {
+    static final int UNBOUNDED = Integer.MAX_VALUE;
+
+    static final class Interval {
+      final int min;
+      final int max;
+
+      Interval(int min0, int max0) {
+        min = min0;
+        max = max0;
+      }
+
+      boolean isEmpty() {
+        return min > max;
+      }
+
+      @Override
+      public boolean equals(Object obj) {
+        if (!(obj instanceof Interval))
+          return false;
+        Interval other = (Interval) obj;
+        return (isEmpty() && other.isEmpty()) || (min == other.min && max == other.max);
+      }
+
+      @Override
+      public int hashCode() {
+        return isEmpty() ? -1 : 31 * min + max;
+      }
+
+      @Override
+      public String toString() {
+        return isEmpty() ? "[]" : "[" + min + ", " + ((max == UNBOUNDED) ? "inf" : max) + "]";
+      }
+    }
+
+    private static final Interval BOTTOM = new Interval(1, 0);
+    private static final Interval TOP = new Interval(0, UNBOUNDED);
+
+    @Override
+    public Interval bottom() {
+      return BOTTOM;
+    }
+
+    @Override
+    public Interval top() {
+      return TOP;
+    }
+
+    @Override
+    public Interval constant(String str) {
+      int any = str.indexOf("(.*)");
+      if (any < 0)
+        return new Interval(str.length(), str.length());
+      int fixed = str.length();
+      for (; any >= 0; any = str.indexOf("(.*)", any + 1))
+        fixed -= "(.*)".length();
+      return new Interval(fixed, UNBOUNDED);
+    }
+
+    @Override
+    public Interval join(Interval a, Interval b) {
+      if (a.isEmpty())
+        return b;
+      if (b.isEmpty())
+        return a;
+      return new Interval(Math.min(a.min, b.min), Math.max(a.max, b.max));
+    }
+
+    @Override
+    public Interval concatenate(Interval a, Interval b) {
+      if (a.isEmpty() || b.isEmpty())
+        return BOTTOM;
+      return new Interval(add(a.min, b.min), add(a.max, b.max));
+    }
+
+    private static int add(int a, int b) {
+      long res = (long) a + b;
+      return (res >= UNBOUNDED) ? UNBOUNDED : (int) res;
+    }
+
+    /* A bound still moving goes to its limit */
+    @Override
+    public Interval widen(Interval prev, Interval next) {
+      if (prev.isEmpty())
+        return next;
+      return new Interval((next.min < prev.min) ? 0 : prev.min, (next.max > prev.max) ? UNBOUNDED
+          : prev.max);
+    }
+
+    @Override
+    public Set<String> strings(Interval v) {
+      return (v.min == 0 && v.max == 0) ? Collections.singleton("") : null;
+    }
+  }
+}
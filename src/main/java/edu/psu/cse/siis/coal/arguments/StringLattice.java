@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2015 The University of Wisconsin and the Pennsylvania State University
+ *
+ * Author: Daniel Luchaup
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.psu.cse.siis.coal.arguments;
+
+import java.util.Set;
+
+/*
+ * An abstract domain of string languages, for FixpointSolver. Values are immutable and compared
+ * with equals(). join and concatenate must be monotone, and widen(prev, next) must be above both
+ * and reach a fixpoint in a bounded number of steps on any ascending chain. See StringDomains.
+ */
+interface StringLattice<V> {
+  /* No string, e.g. a node not solved yet */
+  V bottom();
+
+  /* Any string */
+  V top();
+
+  V constant(String str);
+
+  V join(V a, V b);
+
+  V concatenate(V a, V b);
+
+  V widen(V prev, V next);
+
+  /* The finite set of strings of v, or null if not known; for StringOps */
+  Set<String> strings(V v);
+}
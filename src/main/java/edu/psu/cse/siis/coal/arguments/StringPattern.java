@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2015 The University of Wisconsin and the Pennsylvania State University
+ *
+ * Author: Daniel Luchaup
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.psu.cse.siis.coal.arguments;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * A result string of the solvers, where (.*) stands for any string, as literal segments between
+ * wildcards: segments.length - 1 wildcards, and no two wildcards in a row (a(.*)(.*) is a(.*)).
+ * toString() gives back the string the solvers use.
+ */
+final class StringPattern {
+  static final String ANY = "(.*)";
+  static final StringPattern UNIVERSAL = new StringPattern(new String[] { "", "" });
+
+  final String[] segments;
+
+  private StringPattern(String[] segments0) {
+    segments = segments0;
+  }
+
+  static StringPattern of(Object value) {
+    if (!(value instanceof String))
+      return UNIVERSAL;
+    String str = (String) value;
+    if (str.indexOf(ANY) < 0)
+      return new StringPattern(new String[] { str });
+    List<String> res = new ArrayList<String>();
+    int from = 0;
+    for (int any = str.indexOf(ANY); any >= 0; any = str.indexOf(ANY, from)) {
+      String segment = str.substring(from, any);
+      // an empty segment between two wildcards is dropped
+      if (res.isEmpty() || !segment.isEmpty())
+        res.add(segment);
+      from = any + ANY.length();
+    }
+    res.add(str.substring(from));
+    return new StringPattern(res.toArray(new String[res.size()]));
+  }
+
+  /* left + right, without wildcards in a row */
+  static String concat(Object left, Object right) {
+    if (!(left instanceof String) || !(right instanceof String))
+      return ANY;
+    String l = (String) left;
+    String r = (String) right;
+    if (l.endsWith(ANY) && r.startsWith(ANY))
+      return l + r.substring(ANY.length());
+    return l + r;
+  }
+
+  /* The normal form of a result string */
+  static String normalize(Object value) {
+    if (!(value instanceof String))
+      return ANY;
+    String str = (String) value;
+    return (str.indexOf(ANY + ANY) < 0) ? str : of(str).toString();
+  }
+
+  boolean isLiteral() {
+    return segments.length == 1;
+  }
+
+  boolean isUniversal() {
+    return segments.length == 2 && segments[0].isEmpty() && segments[1].isEmpty();
+  }
+
+  /* Is str, a string without wildcards, in the language of this pattern? */
+  boolean matches(String str) {
+    if (isLiteral())
+      return segments[0].equals(str);
+    String first = segments[0];
+    String last = segments[segments.length - 1];
+    if (str.length() < first.length() + last.length() || !str.startsWith(first)
+        || !str.endsWith(last))
+      return false;
+    int from = first.length();
+    int to = str.length() - last.length();
+    for (int i = 1; i < segments.length - 1; ++i) {
+      int at = str.indexOf(segments[i], from);
+      if (at < 0 || at + segments[i].length() > to)
+        return false;
+      from = at + segments[i].length();
+    }
+    return true;
+  }
+
+  /*
+   * Is the language of other in the language of this pattern? Matches other, its wildcards only
+   * matched by wildcards of this pattern. Exact for literals; for patterns, a false answer only
+   * misses some pruning. The positions that failed are remembered, so that the time is polynomial:
+   * segments.length times the square of the length of other.
+   */
+  boolean subsumes(StringPattern other) {
+    if (other.isLiteral())
+      return matches(other.segments[0]);
+    if (isLiteral())
+      return false;
+    // position (j, k) of other is at[j] + k
+    int[] at = new int[other.segments.length];
+    int positions = 0;
+    for (int j = 0; j < at.length; ++j) {
+      at[j] = positions;
+      positions += other.segments[j].length() + 1;
+    }
+    return subsumes(0, other, 0, 0, at, new boolean[segments.length][positions]);
+  }
+
+  /* segments[i..] against other from segment j, character k; failed[i][at[j] + k] once it fails */
+  private boolean subsumes(int i, StringPattern other, int j, int k, int[] at,
+      boolean[][] failed) {
+    if (failed[i][at[j] + k])
+      return false;
+    String segment = segments[i];
+    // the literal segment i must be at (j, k), within a segment of other
+    String in = other.segments[j];
+    boolean res = false;
+    if (in.startsWith(segment, k)) {
+      int end = k + segment.length();
+      if (i == segments.length - 1) // the end of both
+        res = j == other.segments.length - 1 && end == in.length();
+      else
+        // a wildcard of this pattern: any later position of other, including past its wildcards
+        for (int jj = j; !res && jj < other.segments.length; ++jj)
+          for (int kk = (jj == j) ? end : 0; !res && kk <= other.segments[jj].length(); ++kk)
+            res = subsumes(i + 1, other, jj, kk, at, failed);
+    }
+    if (!res)
+      failed[i][at[j] + k] = true;
+    return res;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    return obj instanceof StringPattern && Arrays.equals(segments, ((StringPattern) obj).segments);
+  }
+
+  @Override
+  public int hashCode() {
+    return Arrays.hashCode(segments);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder(segments[0]);
+    for (int i = 1; i < segments.length; ++i)
+      sb.append(ANY).append(segments[i]);
+    return sb.toString();
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2015 The University of Wisconsin and the Pennsylvania State University
+ *
+ * Author: Daniel Luchaup
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package edu.psu.cse.siis.coal.arguments;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * The storage of SolverCache and CallResultCache: sets of strings per key, where the weight of an
+ * entry is the number of strings in it (plus one for the entry itself). Beyond max_weight the least
+ * recently used entries are evicted, and the cache empties itself when the graph changes. The
+ * methods are synchronized, so that the tasks of a parallel solver may share a cache.
+ */
+class WeightedLRUCache {
+  final int max_weight;
+  private final LinkedHashMap<Object, Set<Object>> entries = new LinkedHashMap<Object, Set<Object>>(
+      16, 0.75f, true);
+  private int weight = 0;
+  private int version = -1;
+  int hits = 0;
+  int misses = 0;
+
+  WeightedLRUCache(int max_weight0) {
+    max_weight = max_weight0;
+  }
+
+  private void check() {
+    int current = LCSnapshot.version();
+    if (version != current) {
+      clear();
+      version = current;
+    }
+  }
+
+  synchronized void clear() {
+    entries.clear();
+    weight = 0;
+  }
+
+  synchronized int size() {
+    return entries.size();
+  }
+
+  synchronized int weight() {
+    return weight;
+  }
+
+  /* The set stored under key, or null; not to be modified */
+  synchronized Set<Object> lookup(Object key) {
+    check();
+    Set<Object> res = entries.get(key);
+    if (res == null)
+      ++misses;
+    else
+      ++hits;
+    return res;
+  }
+
+  synchronized void store(Object key, Set<Object> result) {
+    check();
+    int w = result.size() + 1;
+    if (w > max_weight)
+      return;
+    Set<Object> old = entries.put(key, result);
+    if (old != null)
+      weight -= old.size() + 1;
+    weight += w;
+    for (Iterator<Map.Entry<Object, Set<Object>>> it = entries.entrySet().iterator(); weight > max_weight
+        && it.hasNext();) {
+      weight -= it.next().getValue().size() + 1;
+      it.remove();
+    }
+  }
+}
@@ -27,12 +27,20 @@ public interface switchLC {
 
   public abstract void caseTerminal(LanguageConstraints.Terminal lc);
 
+  public abstract void caseTerminalSet(LanguageConstraints.TerminalSet lc);
+
   public abstract void caseUnion(LanguageConstraints.Union lc);
 
   public abstract void caseConcatenate(LanguageConstraints.Concatenate lc);
 
+  public abstract void caseConcatenateN(LanguageConstraints.ConcatenateN lc);
+
   public abstract void caseEq(LanguageConstraints.Eq lc);
 
+  public abstract void caseStar(LanguageConstraints.Star lc);
+
+  public abstract void caseStringOp(LanguageConstraints.StringOp lc);
+
   public abstract void casePending(LanguageConstraints.Pending lc);
 
   public abstract void caseParameter(LanguageConstraints.Parameter lc);
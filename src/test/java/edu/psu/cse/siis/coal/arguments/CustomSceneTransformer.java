@@ -36,6 +36,11 @@ import soot.toolkits.graph.ExceptionalUnitGraph;
 
 public class CustomSceneTransformer extends SceneTransformer {
   public static final Map<String, Set<Object>> result = new HashMap<String, Set<Object>>();
+  public static final Map<String, LCAutomaton> automata = new HashMap<String, LCAutomaton>();
+  public static final Map<String, LCEnumerator> enumerators = new HashMap<String, LCEnumerator>();
+  /* The queries below are one batch: shared nodes are solved once */
+  private final SolverCache cache = new SolverCache();
+  private final CallResultCache calls = new CallResultCache();
 
   @Override
   protected void internalTransform(String phase, Map options) {
@@ -120,7 +125,7 @@ public class CustomSceneTransformer extends SceneTransformer {
          * finite.
          */
         // DAGSolverVisitorLC dagvlc = new DAGSolverVisitorLC();
-        RecursiveDAGSolverVisitorLC dagvlc = new RecursiveDAGSolverVisitorLC(5);
+        RecursiveDAGSolverVisitorLC dagvlc = new RecursiveDAGSolverVisitorLC(5, cache, calls);
         if (dagvlc.solve(lcb)) {
           /*
            * dagvlc.result is a set of strings which can contain .* for unknown substrings.
@@ -130,6 +135,10 @@ public class CustomSceneTransformer extends SceneTransformer {
           System.out.println("Putting " + dagvlc.result + " for " + method.getName());
           result.put(method.getName(), dagvlc.result);
         }
+        enumerators.put(method.getName(), new LCEnumerator(lcb));
+        AutomatonSolverVisitorLC automatonvlc = new AutomatonSolverVisitorLC(5);
+        if (automatonvlc.solve(lcb))
+          automata.put(method.getName(), automatonvlc.result);
         G.v().out.println("DAG-VISITOR:lcb:\t\t=======>\t\t" + lcb);
       }
     }
@@ -18,12 +18,21 @@
 package edu.psu.cse.siis.coal.arguments;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -32,6 +41,7 @@ import soot.PackManager;
 import soot.Scene;
 import soot.SootClass;
 import soot.Transform;
+import soot.Unit;
 import soot.options.Options;
 
 /**
@@ -141,6 +151,315 @@ public class StringAnalysisTest {
     assertEquals(Collections.emptySet(), result.get("testStringArrayField"));
   }
 
+  @Test
+  public void testConstantSwitch() {
+    assertEquals(
+        new HashSet<Object>(Arrays.asList("SWITCH_ZERO", "SWITCH_ONE", "SWITCH_TWO",
+            "SWITCH_THREE", "SWITCH_FOUR", "SWITCH_DEFAULT")), result.get("testConstantSwitch"));
+  }
+
+  @Test
+  public void testLoopAppend() {
+    assertEquals(Collections.singleton("LOOP(.*)"), result.get("testLoopAppend"));
+  }
+
+  @Test
+  public void testStringOperations() {
+    assertEquals(new HashSet<Object>(Arrays.asList("VALUE", "prefix-value")),
+        result.get("testStringOperations"));
+    // the whitespace next to (.*) may or may not be trimmed
+    LanguageConstraints.StringOp trim =
+        new LanguageConstraints.StringOp(LanguageConstraints.StringOp.TRIM, null, new int[0]);
+    assertEquals("(.*)a", trim.eval(new String[] { "(.*)  a" }));
+    assertEquals("a (.*) b(.*)", trim.eval(new String[] { " \ta (.*) b (.*)\n" }));
+    assertEquals("(.*)", trim.eval(new String[] { " (.*) (.*) " }));
+    assertTrue(StringPattern.of(trim.eval(new String[] { "(.*)  a" })).matches("a"));
+    // the case of non-ASCII strings depends on the locale
+    LanguageConstraints.StringOp upper =
+        new LanguageConstraints.StringOp(LanguageConstraints.StringOp.TO_UPPER_CASE, null,
+            new int[0]);
+    assertEquals("AB(.*)", upper.eval(new String[] { "ab(.*)" }));
+    assertEquals("(.*)", upper.eval(new String[] { "stra\u00dfe" }));
+  }
+
+  @Test
+  public void testAppendChain() {
+    assertEquals(Collections.singleton("CHAIN_A(.*)_B_C(.*)_D_E_F"), result.get("testAppendChain"));
+  }
+
+  @Test
+  public void testSummaries() {
+    // one summary of wrap, instantiated with the arguments of each call
+    assertEquals(Collections.singleton("[ONE][[TWO]]"), result.get("testSummaries"));
+  }
+
+  @Test
+  public void testInlineDepth() {
+    assertEquals(Collections.singleton("abc"), result.get("testInlineDepth"));
+    // the calls below the inline depth are (.*), with or without summaries
+    LanguageConstraints.Box lcb = CustomSceneTransformer.enumerators.get("testInlineDepth").lcb;
+    RecursiveDAGSolverVisitorLC solver = new RecursiveDAGSolverVisitorLC(1);
+    solver.solve(lcb);
+    assertEquals(Collections.<Object> singleton("(.*)c"), solver.result);
+    solver = new RecursiveDAGSolverVisitorLC(2);
+    solver.solve(lcb);
+    assertEquals(Collections.<Object> singleton("(.*)bc"), solver.result);
+  }
+
+  @Test
+  public void testNestedReturnValues() {
+    // the client knows chain1, which chain3 calls through chain2
+    RecursiveDAGSolverVisitorLC.MethodReturnValueAnalysisInterface stub =
+        new RecursiveDAGSolverVisitorLC.MethodReturnValueAnalysisInterface() {
+          @Override
+          public Set<Object> getMethodReturnValues(LanguageConstraints.Call call) {
+            if (call.callee().getName().equals("chain1"))
+              return Collections.<Object> singleton("STUB");
+            return null;
+          }
+        };
+    LanguageConstraints.Box lcb = CustomSceneTransformer.enumerators.get("testInlineDepth").lcb;
+    RecursiveDAGSolverVisitorLC solver = new RecursiveDAGSolverVisitorLC(5, stub);
+    solver.calls = new CallResultCache();
+    solver.solve(lcb);
+    assertEquals(Collections.<Object> singleton("STUBbc"), solver.result);
+    // the summaries of the solvers without it are not affected
+    solver = new RecursiveDAGSolverVisitorLC(5);
+    solver.solve(lcb);
+    assertEquals(Collections.<Object> singleton("abc"), solver.result);
+  }
+
+  @Test
+  public void testUninitializedFieldReturn() {
+    assertEquals(Collections.singleton("NULL-CONSTANTx"),
+        result.get("testUninitializedFieldReturn"));
+  }
+
+  @Test
+  public void testSolverCache() {
+    // a chain of diamonds: 2^24 paths, 24 levels
+    LanguageConstraints.Box lcb = LCFactory.terminalBox("D");
+    for (int i = 0; i < 24; ++i) {
+      LanguageConstraints.Box left =
+          new LanguageConstraints.Box(new LanguageConstraints.Concatenate(lcb, LCFactory
+              .terminalBox("a")));
+      LanguageConstraints.Box right =
+          new LanguageConstraints.Box(new LanguageConstraints.Concatenate(lcb, LCFactory
+              .terminalBox("a")));
+      lcb = union(left, right);
+    }
+    SolverCache cache = new SolverCache();
+    RecursiveDAGSolverVisitorLC solver = new RecursiveDAGSolverVisitorLC(5, cache);
+    solver.solve(lcb);
+    StringBuilder expected = new StringBuilder("D");
+    for (int i = 0; i < 24; ++i)
+      expected.append('a');
+    assertEquals(Collections.<Object> singleton(expected.toString()), solver.result);
+    // the two concatenations of a level have the same content: the second one is a hit
+    assertEquals(24, cache.hits);
+    // beyond max_weight, the least recently used entries go
+    cache = new SolverCache(8);
+    for (int i = 0; i < 16; ++i) {
+      new RecursiveDAGSolverVisitorLC(5, cache).solve(union(LCFactory.terminalBox("W" + i),
+          LCFactory.terminalBox("X" + i)));
+      assertTrue(cache.weight() <= cache.max_weight);
+    }
+    assertTrue(cache.size() < 16);
+  }
+
+  @Test
+  public void testCallResultCache() {
+    LanguageConstraints.Box lcb = CustomSceneTransformer.enumerators.get("testRepeatedCall").lcb;
+    RecursiveDAGSolverVisitorLC solver = new RecursiveDAGSolverVisitorLC(5);
+    solver.calls = new CallResultCache();
+    solver.solve(lcb);
+    assertEquals(Collections.<Object> singleton("[ONE][ONE]"), solver.result);
+    // the second wrap("ONE") is the result of the first one
+    assertEquals(1, solver.calls.misses);
+    assertEquals(1, solver.calls.hits);
+    assertEquals(1, solver.calls.size());
+  }
+
+  @Test
+  public void testPatternSet() {
+    assertEquals("a(.*)b", StringPattern.of("a(.*)(.*)b").toString());
+    // (.*) stands for all the other strings of main
+    assertEquals(Collections.singleton("(.*)"), new PatternSet(result.get("main")));
+    assertEquals(Collections.singleton("CHAIN_A(.*)_D_E_F"), new PatternSet(Arrays.asList(
+        "CHAIN_A(.*)_B_C(.*)_D_E_F", "CHAIN_A1_B_C2_D_E_F", "CHAIN_A(.*)_D_E_F")));
+    PatternSet chain = new PatternSet(result.get("testAppendChain"));
+    assertTrue(chain.matches("CHAIN_A1_B_C2_D_E_F"));
+    assertFalse(chain.matches("CHAIN_A1_B_C2_D_E"));
+    // many ways to place the segments, none of which fits: fails without trying them all
+    StringBuilder wide = new StringBuilder();
+    StringBuilder as = new StringBuilder();
+    for (int i = 0; i < 24; ++i) {
+      wide.append("(.*)a");
+      as.append("aa(.*)");
+    }
+    assertFalse(StringPattern.of(wide + "(.*)b").subsumes(StringPattern.of(as + "c")));
+    assertTrue(StringPattern.of(wide + "(.*)c").subsumes(StringPattern.of(as + "c")));
+  }
+
+  @Test
+  public void testFixpointSolver() {
+    LanguageConstraints.Box constantSwitch =
+        CustomSceneTransformer.enumerators.get("testConstantSwitch").lcb;
+    LanguageConstraints.Box loop = CustomSceneTransformer.enumerators.get("testLoopAppend").lcb;
+    LanguageConstraints.Box chain = CustomSceneTransformer.enumerators.get("testAppendChain").lcb;
+    assertEquals(result.get("testConstantSwitch"), new HashSet<Object>(
+        new FixpointSolver<Set<String>>(new StringDomains.ConstantSet()).solve(constantSwitch)));
+    assertEquals(new StringDomains.Affix("LOOP", false), new FixpointSolver<StringDomains.Affix>(
+        new StringDomains.Prefix()).solve(loop));
+    assertEquals(new StringDomains.Affix("_D_E_F", false),
+        new FixpointSolver<StringDomains.Affix>(new StringDomains.Suffix()).solve(chain));
+    assertEquals("[17, inf]",
+        new FixpointSolver<StringDomains.Length.Interval>(new StringDomains.Length()).solve(chain)
+            .toString());
+    StringDomains.CharSet.Chars chars =
+        new FixpointSolver<StringDomains.CharSet.Chars>(new StringDomains.CharSet())
+            .solve(constantSwitch);
+    assertTrue(chars.contains('W'));
+    assertFalse(chars.contains('x'));
+  }
+
+  @Test
+  public void testQueryBudget() {
+    LanguageConstraints.Box chain = CustomSceneTransformer.enumerators.get("testAppendChain").lcb;
+    RecursiveDAGSolverVisitorLC solver = new RecursiveDAGSolverVisitorLC(5);
+    solver.budget = new QueryBudget(QueryBudget.UNLIMITED, QueryBudget.UNLIMITED,
+        QueryBudget.UNLIMITED);
+    solver.solve(chain);
+    assertFalse(solver.truncated());
+    assertEquals(result.get("testAppendChain"), solver.result);
+    // no node at all, and still sound
+    solver = new RecursiveDAGSolverVisitorLC(5);
+    solver.budget = new QueryBudget(QueryBudget.UNLIMITED, 0, QueryBudget.UNLIMITED);
+    solver.solve(chain);
+    assertTrue(solver.truncated());
+    assertTrue(new PatternSet(solver.result).matches("CHAIN_A1_B_C2_D_E_F"));
+    // the callees summarized for the query are charged to its budget
+    LanguageConstraints.Box calls = CustomSceneTransformer.enumerators.get("testInlineDepth").lcb;
+    solver = new RecursiveDAGSolverVisitorLC(7);
+    solver.budget = new QueryBudget(QueryBudget.UNLIMITED, 1, QueryBudget.UNLIMITED);
+    solver.solve(calls);
+    assertTrue(solver.truncated());
+    assertEquals(Collections.<Object> singleton("(.*)"), solver.result);
+    // and the summaries cut short are not kept
+    solver = new RecursiveDAGSolverVisitorLC(7);
+    solver.budget = new QueryBudget(QueryBudget.UNLIMITED, 100, QueryBudget.UNLIMITED);
+    solver.solve(calls);
+    assertFalse(solver.truncated());
+    assertEquals(Collections.<Object> singleton("abc"), solver.result);
+  }
+
+  @Test
+  public void testAutomatonSolver() {
+    assertEquals(result.get("testConstantSwitch"),
+        CustomSceneTransformer.automata.get("testConstantSwitch").values(16));
+    // the loop is solved as LOOP(_X)*, not LOOP(.*)
+    LCAutomaton loop = CustomSceneTransformer.automata.get("testLoopAppend");
+    assertTrue(loop.accepts("LOOP") && loop.accepts("LOOP_X_X"));
+    assertFalse(loop.accepts("LOOP_Y") || loop.accepts("LOOP_X_"));
+  }
+
+  @Test
+  public void testForwarding() {
+    // the argument of wrap is a parameter of forward, bound to "A" by the caller
+    assertEquals(Collections.singleton("[A]"), result.get("testForwarding"));
+    LCAutomaton forwarded = CustomSceneTransformer.automata.get("testForwarding");
+    assertTrue(forwarded.accepts("[A]"));
+    assertFalse(forwarded.accepts("[]") || forwarded.accepts("[[A]]"));
+  }
+
+  @Test
+  public void testLazyEnumeration() {
+    Set<Object> all = new HashSet<Object>();
+    for (String str : CustomSceneTransformer.enumerators.get("testConstantSwitch"))
+      all.add(str);
+    assertEquals(result.get("testConstantSwitch"), all);
+    assertEquals(2,
+        LCEnumerator.first(CustomSceneTransformer.enumerators.get("testConstantSwitch").lcb, 2)
+            .size());
+    // unknown parts next to each other
+    LanguageConstraints.Box unknowns =
+        new LanguageConstraints.Box(new LanguageConstraints.Concatenate(
+            new LanguageConstraints.Box(new LanguageConstraints.Concatenate(LCFactory
+                .terminalBox("a"), LanguageConstraints.BottomBox())),
+            new LanguageConstraints.Box(new LanguageConstraints.Concatenate(LanguageConstraints
+                .BottomBox(), LCFactory.terminalBox("b")))));
+    assertEquals(Arrays.asList("a(.*)b"), LCEnumerator.first(unknowns, 2));
+    assertEquals(solve(unknowns), new HashSet<Object>(LCEnumerator.first(unknowns, 2)));
+    // calls are inlined as deep as the solver does
+    LanguageConstraints.Box chain = CustomSceneTransformer.enumerators.get("testInlineDepth").lcb;
+    assertEquals(Arrays.asList("(.*)"), LCEnumerator.first(chain, 2));
+    assertEquals(Arrays.asList("(.*)bc"), LCEnumerator.first(chain, 2, 2));
+    assertEquals(Arrays.asList("abc"), LCEnumerator.first(chain, 5, 2));
+    // a union gives each of its strings once
+    List<LanguageConstraints.Box> same = new ArrayList<LanguageConstraints.Box>();
+    for (int i = 0; i < 1000; ++i)
+      same.add(LCFactory.terminalBox("x"));
+    same.add(LCFactory.terminalBox("y"));
+    assertEquals(Arrays.asList("x", "y"),
+        LCEnumerator.first(union(same.toArray(new LanguageConstraints.Box[same.size()])), 3));
+  }
+
+  @Test
+  public void testQueryTracker() {
+    LanguageConstraints.Box lcb = CustomSceneTransformer.enumerators.get("testConstantSwitch").lcb;
+    QueryTracker.Query query = QueryTracker.track(lcb, new QueryTracker.Solver() {
+      @Override
+      public Set<Object> solve(LanguageConstraints.Box lcb) {
+        RecursiveDAGSolverVisitorLC solver = new RecursiveDAGSolverVisitorLC(5);
+        solver.solve(lcb);
+        return solver.result;
+      }
+    });
+    assertEquals(result.get("testConstantSwitch"), query.answer());
+    QueryTracker.changed(CustomSceneTransformer.enumerators.get("testAppend").lcb);
+    assertTrue(query.isValid());
+    QueryTracker.changed(lcb);
+    assertFalse(query.isValid());
+    assertEquals(result.get("testConstantSwitch"), query.answer());
+    assertEquals(2, query.solves);
+    QueryTracker.untrack(query);
+
+    // a change while the query is solved for the first time
+    final LanguageConstraints.Box box = union(LCFactory.terminalBox("BEFORE"));
+    query = QueryTracker.track(box, new QueryTracker.Solver() {
+      @Override
+      public Set<Object> solve(LanguageConstraints.Box lcb) {
+        Set<Object> res = StringAnalysisTest.solve(lcb);
+        if (res.size() == 1) {
+          ((LanguageConstraints.Union) box.getLC()).addLCB(LCFactory.terminalBox("DURING"));
+          QueryTracker.changed(box);
+        }
+        return res;
+      }
+    });
+    assertEquals(new HashSet<Object>(Arrays.asList("BEFORE", "DURING")), query.answer());
+    assertTrue(query.isValid());
+    QueryTracker.untrack(query);
+
+    // a query over the same content, with the same solver, gets the answer of the first one
+    LanguageConstraints.Box first = union(LCFactory.terminalBox("SAME"));
+    LanguageConstraints.Box second = union(LCFactory.terminalBox("SAME"));
+    QueryTracker.Solver solver = new QueryTracker.Solver() {
+      @Override
+      public Set<Object> solve(LanguageConstraints.Box lcb) {
+        return StringAnalysisTest.solve(lcb);
+      }
+    };
+    QueryTracker.Query one = QueryTracker.track(first, solver);
+    QueryTracker.Query two = QueryTracker.track(second, solver);
+    assertEquals(Collections.<Object> singleton("SAME"), one.answer());
+    assertEquals(Collections.<Object> singleton("SAME"), two.answer());
+    assertEquals(1, one.solves);
+    assertEquals(0, two.solves);
+    QueryTracker.untrack(one);
+    QueryTracker.untrack(two);
+  }
+
   @Test
   public void testMain() {
     assertEquals(
@@ -149,4 +468,404 @@ public class StringAnalysisTest {
             "TestUnknowableInt(.*)", "(.*)", "NULL-CONSTANT", "CONSTANT_STRING")),
         result.get("main"));
   }
+
+  @Test
+  public void testOptimizerPasses() {
+    LanguageConstraints.Box eq =
+        new LanguageConstraints.Box(new LanguageConstraints.Eq(LCFactory.terminalBox("a")));
+    LanguageConstraints.Box folded =
+        new LanguageConstraints.Box(new LanguageConstraints.Concatenate(eq,
+            LCFactory.terminalBox("b")));
+    LanguageConstraints.Box nested =
+        union(LCFactory.terminalBox("x"), LCFactory.terminalBox("y"));
+    LanguageConstraints.Box root = union(nested, LCFactory.terminalBox("x"), folded);
+    LanguageConstraints.Box bottoms =
+        new LanguageConstraints.Box(new LanguageConstraints.Concatenate(
+            LanguageConstraints.BottomBox(), LanguageConstraints.BottomBox()));
+    Set<Object> before = solve(root);
+
+    LCOptimizer.defaultPipeline().run(Arrays.asList(root, bottoms));
+    assertEquals(before, solve(root));
+    // Eq elided and constants folded
+    assertEquals(LCFactory.terminal("ab"), folded.getLC());
+    // the nested union inlined, without the second x
+    assertEquals(3, ((LanguageConstraints.Union) root.getLC()).elements.size());
+    assertEquals(LanguageConstraints.Bottom.v(), bottoms.getLC());
+  }
+
+  @Test
+  public void testFactory() throws InterruptedException {
+    LCFactory.reset();
+    LanguageConstraints.Box a = LCFactory.terminalBox("F_A");
+    LanguageConstraints.Box b = LCFactory.terminalBox("F_B");
+    assertSame(a, LCFactory.terminalBox("F_A"));
+    LanguageConstraints.Box ab = LCFactory.concatenate(a, b);
+    assertSame(ab, LCFactory.concatenate(a, b));
+    assertNotSame(ab, LCFactory.concatenate(b, a));
+    assertSame(LCFactory.terminalSet(Arrays.asList("y", "x")),
+        LCFactory.terminalSet(Arrays.asList("x", "y", "x")));
+    assertEquals(5, LCFactory.hits);
+    assertEquals(7, LCFactory.misses);
+    // the children are compared by identity: an equal box is another node
+    LanguageConstraints.Box a2 = new LanguageConstraints.Box(LCFactory.terminal("F_A"));
+    assertNotSame(ab, LCFactory.concatenate(a2, b));
+
+    // the threads interning the same strings get the same nodes
+    final LanguageConstraints.Box[][] boxes = new LanguageConstraints.Box[4][256];
+    Thread[] threads = new Thread[boxes.length];
+    for (int t = 0; t < threads.length; ++t) {
+      final int row = t;
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < boxes[row].length; ++i)
+            boxes[row][i] = LCFactory.terminalBox("F_T" + i);
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads)
+      thread.join();
+    for (int t = 1; t < boxes.length; ++t)
+      for (int i = 0; i < boxes[t].length; ++i)
+        assertSame(boxes[0][i], boxes[t][i]);
+  }
+
+  @Test
+  public void testSCCIndex() {
+    LanguageConstraints.Union loop = new LanguageConstraints.Union();
+    LanguageConstraints.Box loopBox = new LanguageConstraints.Box(loop);
+    LanguageConstraints.Box body =
+        new LanguageConstraints.Box(new LanguageConstraints.Concatenate(loopBox,
+            LCFactory.terminalBox("_X")));
+    loop.addLCB(LCFactory.terminalBox("LOOP"));
+    loop.addLCB(body);
+    LanguageConstraints above =
+        new LanguageConstraints.Concatenate(LCFactory.terminalBox("P"), loopBox);
+    SCCIndex idx = SCCIndex.v(false);
+    assertTrue(idx.inCycle(loop));
+    assertEquals(new HashSet<LanguageConstraints>(Arrays.asList(loop, body.getLC())),
+        new HashSet<LanguageConstraints>(idx.component(loop)));
+    assertFalse(idx.inCycle(above));
+    assertTrue(idx.reachesCycle(above));
+    assertFalse(idx.reachesCycle(LCFactory.terminal("P")));
+    assertEquals(idx.depth(loop) + 1, idx.depth(above));
+    // kept until the graph changes
+    assertSame(idx, SCCIndex.v(false));
+    loop.addLCB(LCFactory.terminalBox("OTHER"));
+    assertNotSame(idx, SCCIndex.v(false));
+  }
+
+  @Test
+  public void testWalkerDepth() {
+    int n = 20000;
+    LanguageConstraints.Box chain = LCFactory.terminalBox("a");
+    for (int i = 0; i < n; ++i)
+      chain = new LanguageConstraints.Box(new LanguageConstraints.Concatenate(chain,
+          LCFactory.terminalBox("b")));
+    final int[] entered = new int[1];
+    new LCWalker(false).walk(chain.getLC(), new LCWalker.Listener() {
+      @Override
+      public boolean enter(LanguageConstraints lc) {
+        if (lc.kind == LanguageConstraints.CONCATENATE)
+          ++entered[0];
+        return true;
+      }
+
+      @Override
+      public void exit(LanguageConstraints lc) {
+      }
+    });
+    assertEquals(n, entered[0]);
+    // far deeper than the stack of the test thread
+    assertTrue(SCCIndex.v(false).depth(chain.getLC()) > LCWalker.max_inline_depth);
+    StringBuilder expected = new StringBuilder("a");
+    for (int i = 0; i < n; ++i)
+      expected.append('b');
+    assertEquals(Collections.<Object> singleton(expected.toString()), solve(chain));
+  }
+
+  @Test
+  public void testFingerprints() {
+    LanguageConstraints.Box left =
+        union(LCFactory.terminalBox("x"), new LanguageConstraints.Box(
+            new LanguageConstraints.Concatenate(LCFactory.terminalBox("y"),
+                LCFactory.terminalBox("z"))));
+    LanguageConstraints.Box right =
+        union(new LanguageConstraints.Box(new LanguageConstraints.Concatenate(
+            LCFactory.terminalBox("y"), LCFactory.terminalBox("z"))), LCFactory.terminalBox("x"));
+    // same shape and leaves, other nodes, other order of the union
+    assertTrue(left.getLC() != right.getLC());
+    long fp = LCFingerprint.of(left);
+    assertEquals(fp, LCFingerprint.of(right));
+    assertEquals(fp, LCFingerprint.of(left));
+    // concatenation is not commutative
+    LanguageConstraints zy =
+        new LanguageConstraints.Concatenate(LCFactory.terminalBox("z"), LCFactory.terminalBox("y"));
+    LanguageConstraints yz =
+        new LanguageConstraints.Concatenate(LCFactory.terminalBox("y"), LCFactory.terminalBox("z"));
+    assertFalse(LCFingerprint.of(zy) == LCFingerprint.of(yz));
+    assertFalse(LCFingerprint.of(LCFactory.terminal("ab")) == LCFingerprint
+        .of(LCFactory.terminal("ba")));
+    // recomputed after a change
+    ((LanguageConstraints.Union) right.getLC()).addLCB(LCFactory.terminalBox("w"));
+    assertFalse(LCFingerprint.isValid(right.getLC()));
+    assertFalse(fp == LCFingerprint.of(right));
+    assertEquals(fp, LCFingerprint.of(left));
+
+    // only the nodes above a change are hashed again
+    LanguageConstraints.Box leaf = new LanguageConstraints.Box(LCFactory.terminal("p"));
+    LanguageConstraints.Box other =
+        new LanguageConstraints.Box(new LanguageConstraints.Concatenate(
+            LCFactory.terminalBox("q"), LCFactory.terminalBox("r")));
+    LanguageConstraints.Box top =
+        new LanguageConstraints.Box(new LanguageConstraints.Concatenate(
+            new LanguageConstraints.Box(new LanguageConstraints.Concatenate(leaf, LCFactory
+                .terminalBox("s"))), other));
+    long before = LCFingerprint.of(top);
+    int stamp = other.getLC().fingerprint_version;
+    leaf.setLC(LCFactory.terminal("t"));
+    assertFalse(LCFingerprint.isValid(top.getLC()));
+    assertTrue(LCFingerprint.isValid(other.getLC()));
+    assertFalse(before == LCFingerprint.of(top));
+    assertEquals(stamp, other.getLC().fingerprint_version);
+
+    // a call is hashed with its site, whatever the identity of its nodes
+    LanguageConstraints.Call call =
+        (LanguageConstraints.Call) CustomSceneTransformer.enumerators.get("testInlineDepth").lcb
+            .getLC();
+    assertEquals(new ArrayList<Unit>(call.sm_context.getActiveBody().getUnits()).indexOf(call.stmt),
+        call.site());
+    assertEquals(LCFingerprint.of(call),
+        LCFingerprint.of(new LanguageConstraints.Call(call.sm_context, call.stmt, call.arguments)));
+
+    // the solvers share the results of the nodes with the same content
+    LanguageConstraints.Box same =
+        union(LCFactory.terminalBox("x"), new LanguageConstraints.Box(
+            new LanguageConstraints.Concatenate(LCFactory.terminalBox("y"), LCFactory
+                .terminalBox("z"))));
+    SolverCache cache = new SolverCache();
+    RecursiveDAGSolverVisitorLC solver = new RecursiveDAGSolverVisitorLC(5, cache);
+    solver.solve(left);
+    int hits = cache.hits;
+    RecursiveDAGSolverVisitorLC copy = new RecursiveDAGSolverVisitorLC(5, cache);
+    copy.solve(same);
+    assertEquals(hits + 1, cache.hits);
+    assertEquals(solver.result, copy.result);
+  }
+
+  @Test
+  public void testPrinterLimits() {
+    LanguageConstraints.Box chain = LCFactory.terminalBox("a");
+    for (int i = 0; i < 10; ++i)
+      chain = new LanguageConstraints.Box(new LanguageConstraints.Concatenate(chain,
+          LCFactory.terminalBox("b")));
+    String full = LCPrinter.toString(chain, 100, 1 << 16);
+    assertFalse(full.contains("..."));
+    assertEquals("cat((cat((cat((...)(term(b))))(term(b))))(term(b)))",
+        LCPrinter.toString(chain, 3, 1 << 16));
+    assertEquals(full.substring(0, 20) + "...", LCPrinter.toString(chain, 100, 20));
+    // a cycle is printed once
+    LanguageConstraints.Union loop = new LanguageConstraints.Union();
+    LanguageConstraints.Box loopBox = new LanguageConstraints.Box(loop);
+    loop.addLCB(new LanguageConstraints.Box(new LanguageConstraints.Concatenate(loopBox,
+        LCFactory.terminalBox("b"))));
+    assertTrue(LCPrinter.toString(loopBox, 100, 1 << 16).contains("{...}"));
+  }
+
+  @Test
+  public void testSnapshotIsolation() throws InterruptedException {
+    final LanguageConstraints.Box root = union(LCFactory.terminalBox("OLD"));
+    final LanguageConstraints.Box cat =
+        new LanguageConstraints.Box(new LanguageConstraints.Concatenate(root,
+            LCFactory.terminalBox("!")));
+    LCSnapshot snap = LCSnapshot.pin();
+    try {
+      // another thread keeps writing to the live graph
+      Thread writer = new Thread() {
+        @Override
+        public void run() {
+          ((LanguageConstraints.Union) root.lc).addLCB(LCFactory.terminalBox("NEW"));
+          cat.setLC(LCFactory.terminal("REPLACED"));
+        }
+      };
+      writer.start();
+      writer.join();
+      assertEquals(1, ((LanguageConstraints.Union) root.getLC()).elements.size());
+      assertEquals(new HashSet<Object>(Arrays.asList("OLD!")), solve(cat));
+      try {
+        LCOptimizer.defaultPipeline().run(Arrays.asList(cat));
+        fail("the optimizer ran under a pinned snapshot");
+      } catch (IllegalStateException e) {
+        // the optimizer would change the unions under the snapshot
+      }
+    } finally {
+      snap.release();
+    }
+    assertEquals(2, ((LanguageConstraints.Union) root.getLC()).elements.size());
+    assertEquals(Collections.<Object> singleton("REPLACED"), solve(cat));
+  }
+
+  @Test
+  public void testMarks() throws InterruptedException {
+    final LanguageConstraints lc = new LanguageConstraints.Union();
+    final LCMarks marks = LCMarks.get();
+    int outer = marks.newEpoch();
+    int outerPrev = marks.mark(lc, outer);
+    assertTrue(marks.isMarked(lc, outer));
+    // a nested visitor marks the same node and gives it back
+    int inner = marks.newEpoch();
+    assertFalse(marks.isMarked(lc, inner));
+    int innerPrev = marks.mark(lc, inner);
+    assertEquals(outer, innerPrev);
+    assertTrue(marks.isMarked(lc, inner));
+    assertFalse(marks.isMarked(lc, outer));
+    marks.unmark(lc, innerPrev);
+    assertTrue(marks.isMarked(lc, outer));
+    // the marks of another thread are its own
+    final boolean[] seen = new boolean[2];
+    Thread other = new Thread() {
+      @Override
+      public void run() {
+        LCMarks otherMarks = LCMarks.get();
+        seen[0] = otherMarks != marks;
+        int epoch = otherMarks.newEpoch();
+        otherMarks.mark(lc, epoch);
+        seen[1] = otherMarks.isMarked(lc, epoch);
+      }
+    };
+    other.start();
+    other.join();
+    assertTrue(seen[0] && seen[1]);
+    assertTrue(marks.isMarked(lc, outer));
+    marks.unmark(lc, outerPrev);
+    assertFalse(marks.isMarked(lc, outer));
+    // nodes created after the stamps were sized
+    LanguageConstraints late = null;
+    for (int i = 0; i < 2048; ++i)
+      late = new LanguageConstraints.Union();
+    int epoch = marks.newEpoch();
+    assertFalse(marks.isMarked(late, epoch));
+    int latePrev = marks.mark(late, epoch);
+    assertTrue(marks.isMarked(late, epoch));
+    marks.unmark(late, latePrev);
+    assertFalse(marks.isMarked(late, epoch));
+  }
+
+  @Test
+  public void testWideningSoundness() {
+    Random random = new Random(17);
+    String alphabet = "ab_";
+    for (int run = 0; run < 200; ++run) {
+      Set<String> values = new HashSet<String>();
+      for (int i = 0, n = 1 + random.nextInt(40); i < n; ++i) {
+        StringBuilder sb = new StringBuilder();
+        for (int j = 0, len = random.nextInt(6); j < len; ++j)
+          sb.append(random.nextInt(8) == 0 ? "(.*)" : alphabet.charAt(random.nextInt(3)));
+        values.add(sb.toString());
+      }
+      int patterns = 1 + random.nextInt(4);
+      Set<String> widened = LCWidening.widen(values, patterns);
+      assertTrue(widened.size() <= patterns);
+      for (String value : values) {
+        boolean covered = false;
+        for (String pattern : widened)
+          covered |= StringPattern.of(pattern).subsumes(StringPattern.of(value));
+        assertTrue(value + " not in " + widened, covered);
+      }
+    }
+    // prefix and suffix must not overlap
+    assertTrue(new PatternSet(LCWidening.widen(Arrays.asList("aa", "aaa"), 1)).matches("aa"));
+    // the solvers bound their sets the same way
+    LanguageConstraints.Union many = new LanguageConstraints.Union();
+    for (int i = 0; i <= LCWidening.max_results; ++i)
+      many.addLCB(LCFactory.terminalBox("V" + i + "_"));
+    Set<Object> solved = solve(new LanguageConstraints.Box(many));
+    assertTrue(solved.size() <= LCWidening.max_patterns);
+    PatternSet patterns = new PatternSet(solved);
+    for (int i = 0; i <= LCWidening.max_results; ++i)
+      assertTrue(patterns.matches("V" + i + "_"));
+  }
+
+  @Test
+  public void testParallelSolving() {
+    // a DAG of unions over shared concatenations, wide enough to be split
+    List<LanguageConstraints.Box> parts = new ArrayList<LanguageConstraints.Box>();
+    for (int i = 0; i < 64; ++i)
+      parts.add(new LanguageConstraints.Box(new LanguageConstraints.Concatenate(LCFactory
+          .terminalBox("P" + (i % 8)), LCFactory.terminalBox("_" + i))));
+    List<LanguageConstraints.Box> boxes = new ArrayList<LanguageConstraints.Box>();
+    for (int i = 0; i < 16; ++i)
+      boxes.add(union(parts.get(i), parts.get(i + 16), parts.get(i + 32), parts.get(63 - i)));
+    boxes.add(union(boxes.toArray(new LanguageConstraints.Box[boxes.size()])));
+    for (LCEnumerator enumerator : CustomSceneTransformer.enumerators.values())
+      boxes.add(enumerator.lcb);
+
+    int old_threshold = RecursiveDAGSolverVisitorLC.parallel_threshold;
+    ForkJoinPool pool = new ForkJoinPool(4);
+    RecursiveDAGSolverVisitorLC.parallel_threshold = 1;
+    try {
+      for (LanguageConstraints.Box lcb : boxes) {
+        RecursiveDAGSolverVisitorLC parallel =
+            new RecursiveDAGSolverVisitorLC(5, new SolverCache(), pool);
+        parallel.solve(lcb);
+        assertEquals(solve(lcb), new HashSet<Object>(parallel.result));
+      }
+    } finally {
+      RecursiveDAGSolverVisitorLC.parallel_threshold = old_threshold;
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testParallelSnapshot() {
+    // the tasks of a parallel solver read the same union through the snapshot at the same time
+    LanguageConstraints.Union shared = new LanguageConstraints.Union();
+    for (int i = 0; i < 8; ++i)
+      shared.addLCB(LCFactory.terminalBox("S" + i));
+    LanguageConstraints.Box sharedBox = new LanguageConstraints.Box(shared);
+    List<LanguageConstraints.Box> boxes = new ArrayList<LanguageConstraints.Box>();
+    for (int i = 0; i < 32; ++i)
+      boxes.add(new LanguageConstraints.Box(new LanguageConstraints.Concatenate(LCFactory
+          .terminalBox("P" + i + "_"), sharedBox)));
+    LanguageConstraints.Box root = union(boxes.toArray(new LanguageConstraints.Box[boxes.size()]));
+
+    int old_threshold = RecursiveDAGSolverVisitorLC.parallel_threshold;
+    ForkJoinPool pool = new ForkJoinPool(4);
+    RecursiveDAGSolverVisitorLC.parallel_threshold = 1;
+    try {
+      for (int round = 0; round < 16; ++round) {
+        LCSnapshot snap = LCSnapshot.pin();
+        try {
+          // grows after the snapshot, so that the union is read through a copy
+          shared.addLCB(LCFactory.terminalBox("LATE" + round));
+          RecursiveDAGSolverVisitorLC parallel =
+              new RecursiveDAGSolverVisitorLC(5, new SolverCache(), pool);
+          parallel.solve(root);
+          Set<Object> expected = solve(root);
+          assertEquals(expected, new HashSet<Object>(parallel.result));
+          assertEquals(32 * (8 + round), expected.size());
+          assertSame(snap.read(sharedBox), snap.read(sharedBox));
+        } finally {
+          snap.release();
+        }
+      }
+    } finally {
+      RecursiveDAGSolverVisitorLC.parallel_threshold = old_threshold;
+      pool.shutdown();
+    }
+  }
+
+  private static LanguageConstraints.Box union(LanguageConstraints.Box... elements) {
+    LanguageConstraints.Union lcu = new LanguageConstraints.Union();
+    for (LanguageConstraints.Box element : elements)
+      lcu.addLCB(element);
+    return new LanguageConstraints.Box(lcu);
+  }
+
+  private static Set<Object> solve(LanguageConstraints.Box lcb) {
+    RecursiveDAGSolverVisitorLC solver = new RecursiveDAGSolverVisitorLC(5);
+    solver.solve(lcb);
+    return solver.result;
+  }
 }
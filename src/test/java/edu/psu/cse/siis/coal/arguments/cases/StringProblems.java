@@ -147,6 +147,15 @@ public class StringProblems {
     testArgumentField();
     testStringArrayField();
     testMergePaths(intArgument);
+    testConstantSwitch(intArgument);
+    testLoopAppend(intArgument);
+    testStringOperations(intArgument);
+    testAppendChain(intArgument);
+    testSummaries();
+    testRepeatedCall();
+    testForwarding();
+    testInlineDepth();
+    testUninitializedFieldReturn();
   }
 
   public static void testAppend() {
@@ -226,4 +235,98 @@ public class StringProblems {
 
     System.out.println(stringBuilder2.toString());
   }
+
+  public static void testConstantSwitch(int key) {
+    String name;
+    switch (key) {
+    case 0:
+      name = "SWITCH_ZERO";
+      break;
+    case 1:
+      name = "SWITCH_ONE";
+      break;
+    case 2:
+      name = "SWITCH_TWO";
+      break;
+    case 3:
+      name = "SWITCH_THREE";
+      break;
+    case 4:
+      name = "SWITCH_FOUR";
+      break;
+    default:
+      name = "SWITCH_DEFAULT";
+    }
+    System.out.println(name);
+  }
+
+  public static void testLoopAppend(int count) {
+    StringBuilder stringBuilder = new StringBuilder("LOOP");
+    for (int i = 0; i < count; ++i) {
+      stringBuilder.append("_X");
+    }
+    System.out.println(stringBuilder.toString());
+  }
+
+  public static void testStringOperations(int mode) {
+    String value = "  Prefix_Value  ".trim();
+    String result;
+    if (mode > 0) {
+      result = value.substring(7).toUpperCase();
+    } else {
+      result = value.replace('_', '-').toLowerCase();
+    }
+    System.out.println(result);
+  }
+
+  public static void testAppendChain(int value) {
+    StringBuilder stringBuilder = new StringBuilder("CHAIN");
+    stringBuilder.append("_A").append(value).append("_B").append("_C").append(value);
+    stringBuilder.append("_D").append("_E").append("_F");
+    System.out.println(stringBuilder.toString());
+  }
+
+  public static void testSummaries() {
+    System.out.println(wrap("ONE") + wrap(wrap("TWO")));
+  }
+
+  public static void testRepeatedCall() {
+    System.out.println(wrap("ONE") + wrap("ONE"));
+  }
+
+  private static String wrap(String value) {
+    return "[" + value + "]";
+  }
+
+  public static void testForwarding() {
+    System.out.println(forward("A"));
+  }
+
+  private static String forward(String value) {
+    return wrap(value);
+  }
+
+  public static void testInlineDepth() {
+    System.out.println(chain3());
+  }
+
+  private static String chain3() {
+    return chain2() + "c";
+  }
+
+  private static String chain2() {
+    return chain1() + "b";
+  }
+
+  private static String chain1() {
+    return "a";
+  }
+
+  public static void testUninitializedFieldReturn() {
+    System.out.println(getUninitializedField() + "x");
+  }
+
+  private static String getUninitializedField() {
+    return myUninitializedField;
+  }
 }